@@ -3,10 +3,18 @@
  */
 package org.jbundle.util.osgi;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.net.URL;
+import java.nio.ByteBuffer;
+import java.util.Collection;
 import java.util.Dictionary;
+import java.util.HashMap;
 import java.util.Locale;
+import java.util.Map;
 import java.util.ResourceBundle;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * Service to find and load bundle classes and resources.
@@ -24,6 +32,25 @@ public interface ClassFinder {
      * @return The class definition or null if not found.
      */
     public Class<?> findClass(String className, String versionRange);
+    /**
+     * Find, resolve, and return these class definitions.
+     * Each package is looked up (and deployed) once, and the packages are loaded in parallel
+     * (the default implementation just calls findClass for each class).
+     * @param classNames The class names
+     * @param version Version range
+     * @return The class definitions by class name (the classes that were not found are not in the map).
+     */
+    public default Map<String, Class<?>> findClasses(Collection<String> classNames, String versionRange)
+    {
+        Map<String, Class<?>> classes = new HashMap<String, Class<?>>();
+        for (String className : classNames)
+        {
+            Class<?> c = this.findClass(className, versionRange);
+            if (c != null)
+                classes.put(className, c);
+        }
+        return classes;
+    }
     /**
      * Find, resolve, and return this resource's URL.
      * Static convenience method.
@@ -32,6 +59,36 @@ public interface ClassFinder {
      * @return The class definition or null if not found.
      */
     public URL findResourceURL(String className, String versionRange);
+    /**
+     * Find, resolve, and return this resource's contents.
+     * The contents are cached off-heap, so the buffer is a read-only view (not a copy)
+     * (the default implementation reads the resource into a heap buffer each time).
+     * @param name The resource path
+     * @param version Version range
+     * @return The contents or null if not found.
+     */
+    public default ByteBuffer findResourceBytes(String name, String versionRange)
+    {
+        URL url = this.findResourceURL(name, versionRange);
+        if (url == null)
+            return null;
+        try {
+            InputStream inStream = url.openStream();
+            try {
+                ByteArrayOutputStream outStream = new ByteArrayOutputStream();
+                byte[] bytes = new byte[8192];
+                int length;
+                while ((length = inStream.read(bytes)) != -1)
+                    outStream.write(bytes, 0, length);
+                return ByteBuffer.wrap(outStream.toByteArray()).asReadOnlyBuffer();
+            } finally {
+                inStream.close();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        return null;
+    }
     /**
      * Find, resolve, and return this ResourceBundle.
      * Static convenience method.
@@ -91,6 +148,61 @@ public interface ClassFinder {
      * @param service The service object
      */
     public void shutdownService(Object service);
+    /**
+     * Find, resolve, and return this class definition (without blocking).
+     * The default implementations of the async lookups just run the blocking lookup on the common pool.
+     * @param className
+     * @param version Version range
+     * @return A future that completes with the class definition or null if not found.
+     */
+    public default CompletableFuture<Class<?>> findClassAsync(String className, String versionRange)
+    {
+        return CompletableFuture.supplyAsync(() -> findClass(className, versionRange));
+    }
+    /**
+     * Find, resolve, and return this resource's URL (without blocking).
+     * @param className
+     * @param version Version range
+     * @return A future that completes with the URL or null if not found.
+     */
+    public default CompletableFuture<URL> findResourceURLAsync(String className, String versionRange)
+    {
+        return CompletableFuture.supplyAsync(() -> findResourceURL(className, versionRange));
+    }
+    /**
+     * Find, resolve, and return this ResourceBundle (without blocking).
+     * @param className
+     * @param version Version range
+     * @return A future that completes with the resource bundle or null if not found.
+     */
+    public default CompletableFuture<ResourceBundle> findResourceBundleAsync(String className, Locale locale, String versionRange)
+    {
+        return CompletableFuture.supplyAsync(() -> findResourceBundle(className, locale, versionRange));
+    }
+    /**
+     * Find this class's registered class access service (without blocking).
+     * The future completes when the service is registered and its bundle is active.
+     * @param className The class name (that has the package that the object was registered under)
+     * @param version Version range
+     * @param filter Other filters to use to find the service
+     * @param secsToWait Time to wait for service to start (0=don't wait, -1=default)
+     * @return A future that completes with the service or null if it did not start in time.
+     */
+    public default CompletableFuture<BundleService> getClassBundleServiceAsync(String className, String versionRange, Dictionary<String, String> filter, int secsToWait)
+    {
+        return CompletableFuture.supplyAsync(() -> getClassBundleService(className, versionRange, filter, secsToWait));
+    }
+    /**
+     * Find this resource in the repository, then deploy and optionally start it (without blocking).
+     * @param version Version range
+     * @param className
+     * @param options 
+     * @return A future that completes with the resource or null if not found.
+     */
+    public default CompletableFuture<Object> deployThisResourceAsync(String packageName, String versionRange, boolean start)
+    {
+        return CompletableFuture.supplyAsync(() -> deployThisResource(packageName, versionRange, start));
+    }
     /**
      * Log this message.
      * @param bundleContext
@@ -3,11 +3,14 @@
  */
 package org.jbundle.util.osgi;
 
+import java.io.IOException;
 import java.net.URL;
 import java.util.Locale;
 import java.util.MissingResourceException;
 import java.util.ResourceBundle;
 
+import org.jbundle.util.osgi.codec.ObjectCodecs;
+
 /**
  * Thin specific static utility methods.
 
@@ -70,6 +73,22 @@ public interface ClassService
     * @throws ClassNotFoundException
     */
    public Object convertStringToObject(String string, String versionRange) throws ClassNotFoundException;
+   /**
+    * Convert this java object to an encoded string (with the default codec).
+    * @param object The object to convert.
+    * @return The encoded string.
+    */
+   public default String convertObjectToString(Object object)
+   {
+       if (object == null)
+           return null;
+       try {
+           return ObjectCodecs.encodeToString(object);
+       } catch (IOException e) {
+           e.printStackTrace();
+       }
+       return null;
+   }
    /**
     * Get the bundle classloader for this package.
  * @param version Version range
@@ -3,19 +3,20 @@
  */
 package org.jbundle.util.osgi.bundle;
 
-import java.io.ByteArrayInputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.ObjectInputStream;
 import java.net.URL;
 import java.util.Dictionary;
 import java.util.Hashtable;
+import java.util.concurrent.CompletableFuture;
 
 import org.jbundle.util.osgi.BundleService;
-import org.jbundle.util.osgi.ClassService;
+import org.jbundle.util.osgi.codec.CachingClassResolver;
+import org.jbundle.util.osgi.codec.ClassResolver;
+import org.jbundle.util.osgi.codec.ObjectCodecs;
 import org.jbundle.util.osgi.finder.BaseClassFinderService;
 import org.jbundle.util.osgi.finder.ClassFinderActivator;
 import org.jbundle.util.osgi.finder.ClassServiceUtility;
+import org.jbundle.util.osgi.finder.StartupTracker;
 import org.osgi.framework.Bundle;
 import org.osgi.framework.BundleActivator;
 import org.osgi.framework.BundleContext;
@@ -76,6 +77,9 @@ public class BaseBundleService extends Object
      */
     public void stop(BundleContext context) throws Exception {
         ClassServiceUtility.log(context, LogService.LOG_INFO, "Stopping a BaseBundleService bundle");
+        StartupScheduler scheduler = StartupScheduler.getExistingScheduler();
+        if (scheduler != null)
+            scheduler.cancel(this);     // Don't start my dependent services
 //        Automatically unregistered.
         this.context = null;
     }
@@ -143,7 +147,7 @@ public class BaseBundleService extends Object
 
     /**
      * Convert this encoded string back to a Java Object.
-     * TODO This is expensive, I need to synchronize and use a static writer.
+     * The classes are found with makeClass (and cached for this bundle's class loader).
      * @param string The string to convert.
      * @return The java object.
      * @throws ClassNotFoundException 
@@ -154,12 +158,13 @@ public class BaseBundleService extends Object
         if ((string == null) || (string.length() == 0))
             return null;
         try {
-            InputStream reader = new ByteArrayInputStream(string.getBytes(ClassService.OBJECT_ENCODING));//Constants.STRING_ENCODING));
-            ObjectInputStream inStream = new ObjectInputStream(reader);
-            Object obj = inStream.readObject();
-            reader.close();
-            inStream.close();
-            return obj;
+            return ObjectCodecs.decodeString(string, new CachingClassResolver(this.getClass().getClassLoader(), new ClassResolver() {
+                public Class<?> resolveClass(String className)
+                    throws ClassNotFoundException
+                {
+                    return makeClass(className);
+                }
+            }));
         } catch (IOException ex)    {
             ex.printStackTrace();   // Never
         }
@@ -179,16 +184,13 @@ public class BaseBundleService extends Object
         {    // Good, dependent service is already up; now I can start up.
             return this.startupThisService(bundleContext);
         }
-    	// Dependent service has not started, so I need to start it and then listen
-		try {
-		    if (serviceReference == null)
-		        bundleContext.addServiceListener(new DependentServiceRegisteredListener(this, bundleContext), /*"(&" +*/ "(objectClass=" + dependentBaseBundleClassName + ")");	// This will call startupThisService once the service is up
-		    else
-                bundleContext.addBundleListener(new DependentBundleStartupListener(this, bundleContext, serviceReference.getBundle())); // This will call startupThisService once the service is up
-	    	new BundleStarter(this, bundleContext, dependentBaseBundleClassName, versionRange).start();
-		} catch (InvalidSyntaxException e) {
-			e.printStackTrace();
-		}
+    	// Dependent service has not started, so I need to start it and then wait (without a thread)
+        final BundleContext context = bundleContext;
+        CompletableFuture<Bundle> dependentStarted = StartupTracker.getTracker(bundleContext).whenServiceStarted(dependentBaseBundleClassName, versionRange, null);
+	    dependentStarted.thenAccept(bundle -> startupThisService(context));    // This will call startupThisService once the service is up
+	    StartupScheduler scheduler = StartupScheduler.getScheduler(bundleContext);
+	    scheduler.track(this, dependentStarted);  // Stop waiting if I'm stopped (this also cancels the tracker's waiters)
+	    scheduler.submit(this, new BundleStartTask(bundleContext, dependentBaseBundleClassName, versionRange));   // Starts the bundle, but doesn't wait
     	return false;
     }
     /**
@@ -0,0 +1,33 @@
+/*
+ * Copyright © 2012 jbundle.org. All rights reserved.
+ */
+package org.jbundle.util.osgi.bundle;
+
+import org.jbundle.util.osgi.finder.ClassFinderActivator;
+import org.osgi.framework.BundleContext;
+
+/**
+ * This task starts the bundle that belongs to this class (deploying it if it isn't installed).
+ * Note: This is run by the StartupScheduler since it usually takes a while to run.
+ * It doesn't wait for the service to register (the caller waits on the StartupTracker),
+ * so a chain of dependent services never ties up the scheduler's threads.
+ * @author don
+ *
+ */
+public class BundleStartTask implements Runnable
+{
+	BundleContext bundleContext = null;
+	String dependentBaseBundleClassName = null;
+	String versionRange = null;
+	
+	public BundleStartTask(BundleContext bundleContext, String dependentBaseBundleClassName, String versionRange)
+	{
+		this.bundleContext = bundleContext;
+		this.dependentBaseBundleClassName = dependentBaseBundleClassName;
+		this.versionRange = versionRange;
+	}
+	public void run()
+	{
+		ClassFinderActivator.startServiceBundle(bundleContext, dependentBaseBundleClassName, versionRange, -1);
+	}
+}
@@ -12,8 +12,9 @@ import org.osgi.framework.BundleContext;
  * with the bundle object.
  * Note: This is a thread since is is usually takes a while to run.
  * @author don
- *
+ * @deprecated BaseBundleService runs a BundleStartTask on the StartupScheduler instead.
  */
+@Deprecated
 public class BundleStarter extends Thread
 {
 	BundleContext bundleContext = null;
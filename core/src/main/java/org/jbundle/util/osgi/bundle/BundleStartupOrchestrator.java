@@ -0,0 +1,470 @@
+/*
+ * Copyright © 2012 jbundle.org. All rights reserved.
+ */
+package org.jbundle.util.osgi.bundle;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.jbundle.util.osgi.finder.BaseClassFinderService;
+import org.jbundle.util.osgi.finder.ClassFinderActivator;
+import org.jbundle.util.osgi.finder.ClassServiceUtility;
+import org.jbundle.util.osgi.finder.StartupTracker;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.BundleException;
+import org.osgi.framework.Constants;
+import org.osgi.framework.wiring.BundleRevision;
+import org.osgi.framework.wiring.BundleWire;
+import org.osgi.framework.wiring.BundleWiring;
+import org.osgi.framework.wiring.FrameworkWiring;
+import org.osgi.service.log.LogService;
+
+/**
+ * BundleStartupOrchestrator - Start a set of bundles, each one after the bundles it depends on,
+ * starting independent bundles in parallel.
+ * The bundles I am asked to start are started along with the bundles they depend on that aren't active yet.
+ * The dependencies come from the framework's wiring (the bundles that actually provide each bundle's
+ * imported packages and required bundles).
+ * The root bundles that aren't installed are deployed first; the graph is built without deploying anything,
+ * so a bundle that can't be resolved fails the startup before any bundle is started.
+ * Bundles that depend on each other (a dependency cycle) are started one at a time, in install order.
+ *
+ * @author don
+ *
+ */
+public class BundleStartupOrchestrator
+{
+    /**
+     * Default number of bundles to start at the same time.
+     */
+    public static final String STARTUP_PARALLELISM_PARAM = "jbundle.startup.parallelism";
+    public static final int DEFAULT_PARALLELISM = Runtime.getRuntime().availableProcessors();
+    /**
+     * The (shared) pool that starts the bundles (idle threads exit, so there is nothing to shut down).
+     */
+    protected static final ExecutorService executor = Executors.newCachedThreadPool(new ThreadFactory() {
+        private final AtomicInteger count = new AtomicInteger();
+        public Thread newThread(Runnable runnable)
+        {
+            Thread thread = new Thread(runnable, "BundleStartupOrchestrator " + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    protected BundleContext context = null;
+
+    protected BaseClassFinderService classFinder = null;
+
+    protected int parallelism = DEFAULT_PARALLELISM;
+
+    protected int secsToWait = -1;
+
+    /**
+     * Constructor.
+     * @param context The bundle context
+     * @param classFinder The class finder (to deploy the missing packages)
+     */
+    public BundleStartupOrchestrator(BundleContext context, BaseClassFinderService classFinder)
+    {
+        super();
+        this.context = context;
+        this.classFinder = classFinder;
+        this.setParallelism(BaseClassFinderService.getIntProperty(context, STARTUP_PARALLELISM_PARAM, DEFAULT_PARALLELISM));
+    }
+    /**
+     * Set the number of bundles to start at the same time.
+     */
+    public void setParallelism(int parallelism)
+    {
+        this.parallelism = Math.max(1, parallelism);
+    }
+    /**
+     * Set the time to wait for each bundle (and root service) to start.
+     * @param secsToWait Time to wait (-1 = default)
+     */
+    public void setSecsToWait(int secsToWait)
+    {
+        this.secsToWait = secsToWait;
+    }
+    /**
+     * Start these bundle services (deploying their bundles if they aren't installed).
+     * @param rootClassNames The BaseBundleService class names to start
+     * @param versionRange Version range
+     * @return true if all the services are up.
+     * @throws BundleException If a bundle is missing, can't be resolved, or won't start
+     */
+    public boolean startup(Collection<String> rootClassNames, String versionRange)
+        throws BundleException
+    {
+        List<Bundle> bundles = new ArrayList<Bundle>();
+        for (String className : rootClassNames)
+        {
+            Bundle bundle = this.getBundle(ClassFinderActivator.getPackageName(className, false), versionRange);
+            if (bundle == null)
+                throw new BundleException("Can't find the bundle for " + className);
+            bundles.add(bundle);
+        }
+        this.start(bundles);
+
+        boolean success = true;
+        for (String className : rootClassNames)
+        {
+            if (!classFinder.startBaseBundle(context, className, versionRange, secsToWait))
+            {
+                ClassServiceUtility.log(context, LogService.LOG_WARNING, "Service never registered: " + className);
+                success = false;
+            }
+        }
+        return success;
+    }
+    /**
+     * Start these (installed) bundles, each one after the bundles it depends on.
+     * @param bundles The bundles to start (the framework and fragments are skipped)
+     * @throws BundleException If a bundle can't be resolved or won't start
+     */
+    public void start(Collection<Bundle> bundles)
+        throws BundleException
+    {
+        Map<Long, Node> graph = this.buildGraph(bundles);
+        List<List<Node>> groups = BundleStartupOrchestrator.sort(graph);
+        for (List<Node> group : groups)
+        {
+            if (group.size() > 1)
+            {
+                StringBuilder sb = new StringBuilder("Dependency cycle, starting in install order:");
+                for (Node node : group)
+                {
+                    sb.append(' ').append(node.bundle.getSymbolicName());
+                }
+                ClassServiceUtility.log(context, LogService.LOG_INFO, sb.toString());
+            }
+        }
+        ClassServiceUtility.log(context, LogService.LOG_INFO, "Starting " + graph.size() + " bundles, " + parallelism + " at a time");
+        this.startBundles(groups);
+    }
+    /**
+     * Find the installed bundle that exports this package (deploying it if it isn't installed).
+     * @return The bundle or null if not found.
+     */
+    protected Bundle getBundle(String packageName, String versionRange)
+    {
+        Bundle bundle = BaseClassFinderService.findBundle(context, packageName, versionRange);
+        if (bundle == null)
+        {
+            Object resource = classFinder.deployThisResource(packageName, versionRange, false);
+            if (resource != null)
+                bundle = classFinder.findBundle(resource, context, packageName, versionRange);
+        }
+        return bundle;
+    }
+    /**
+     * Build the dependency graph of these bundles (resolving them first).
+     * The providers that these bundles depend on (directly or not) that aren't active are added to the graph.
+     * @return The graph (bundle id to node, in install order).
+     * @throws BundleException If a bundle can't be resolved
+     */
+    protected Map<Long, Node> buildGraph(Collection<Bundle> bundles)
+        throws BundleException
+    {
+        Map<Long, Node> graph = new TreeMap<Long, Node>();
+        for (Bundle bundle : bundles)
+        {
+            if (BundleStartupOrchestrator.isStartable(bundle))
+                graph.put(bundle.getBundleId(), new Node(bundle));
+        }
+        this.resolve(graph.values());   // (This resolves their providers too)
+        Set<Long> visited = new HashSet<Long>(graph.keySet());
+        LinkedList<Bundle> queue = new LinkedList<Bundle>();
+        for (Node node : graph.values())
+        {
+            queue.add(node.bundle);
+        }
+        while (!queue.isEmpty())
+        {
+            for (Bundle provider : BundleStartupOrchestrator.getProviders(queue.removeFirst()))
+            {
+                if (!visited.add(provider.getBundleId()))
+                    continue;
+                queue.add(provider);    // An active provider may depend on a bundle that isn't active
+                if (((provider.getState() & Bundle.ACTIVE) == 0) && (BundleStartupOrchestrator.isStartable(provider)))
+                    graph.put(provider.getBundleId(), new Node(provider));
+            }
+        }
+        for (Node node : graph.values())
+        {
+            this.addDependencies(graph, node);
+        }
+        return graph;
+    }
+    /**
+     * Can this bundle be started (it isn't the framework or a fragment)?
+     */
+    public static boolean isStartable(Bundle bundle)
+    {
+        return ((bundle.getBundleId() != 0) && (bundle.getHeaders().get(Constants.FRAGMENT_HOST) == null));  // Fragments are started with their host
+    }
+    /**
+     * Resolve these bundles (so their wiring is known).
+     * @throws BundleException If a bundle can't be resolved (a missing dependency)
+     */
+    protected void resolve(Collection<Node> nodes)
+        throws BundleException
+    {
+        List<Bundle> unresolved = new ArrayList<Bundle>();
+        for (Node node : nodes)
+        {
+            if (node.bundle.getState() == Bundle.INSTALLED)
+                unresolved.add(node.bundle);
+        }
+        if (unresolved.isEmpty())
+            return;
+        FrameworkWiring frameworkWiring = context.getBundle(0).adapt(FrameworkWiring.class);
+        if ((frameworkWiring == null) || (frameworkWiring.resolveBundles(unresolved)))
+            return;     // (If there is no framework wiring, the bundle fails when it starts)
+        for (Bundle bundle : unresolved)
+        {
+            if (bundle.getState() == Bundle.INSTALLED)
+                throw new BundleException("Missing dependency: " + bundle.getSymbolicName() + " can't be resolved");
+        }
+    }
+    /**
+     * Add the bundles in the graph that this bundle is wired to (directly or through bundles that aren't in the graph).
+     */
+    protected void addDependencies(Map<Long, Node> graph, Node node)
+    {
+        Set<Long> visited = new HashSet<Long>();
+        visited.add(node.bundle.getBundleId());
+        LinkedList<Bundle> queue = new LinkedList<Bundle>();
+        queue.add(node.bundle);
+        while (!queue.isEmpty())
+        {
+            for (Bundle provider : BundleStartupOrchestrator.getProviders(queue.removeFirst()))
+            {
+                if (!visited.add(provider.getBundleId()))
+                    continue;
+                Node dependency = graph.get(provider.getBundleId());
+                if (dependency == null)
+                    queue.add(provider);    // I don't start it, but it may depend on a bundle I do start
+                else if (node.dependencies.add(dependency))
+                    dependency.dependents.add(node);
+            }
+        }
+    }
+    /**
+     * Get the bundles that provide this bundle's imported packages and required bundles.
+     * @return The providers (not the framework); none if the bundle isn't resolved.
+     */
+    public static Set<Bundle> getProviders(Bundle bundle)
+    {
+        Set<Bundle> providers = new LinkedHashSet<Bundle>();
+        BundleWiring wiring = bundle.adapt(BundleWiring.class);
+        if (wiring == null)
+            return providers;
+        for (String namespace : new String[] {BundleRevision.PACKAGE_NAMESPACE, BundleRevision.BUNDLE_NAMESPACE})
+        {
+            List<BundleWire> wires = wiring.getRequiredWires(namespace);
+            if (wires != null)
+                for (BundleWire wire : wires)
+            {
+                Bundle provider = wire.getProviderWiring().getBundle();
+                if ((provider.getBundleId() != 0) && (provider.getBundleId() != bundle.getBundleId()))
+                    providers.add(provider);
+            }
+        }
+        return providers;
+    }
+    /**
+     * Sort the graph into start groups, each group after the groups it depends on.
+     * Bundles that depend on each other (a cycle) are in the same group, in install order;
+     * every other group has one bundle.
+     * @return The groups in start order.
+     */
+    public static List<List<Node>> sort(Map<Long, Node> graph)
+    {
+        List<List<Node>> groups = new ArrayList<List<Node>>();
+        Map<Node, int[]> links = new HashMap<Node, int[]>();
+        LinkedList<Node> stack = new LinkedList<Node>();
+        Set<Node> onStack = new HashSet<Node>();
+        for (Node node : graph.values())
+        {
+            if (!links.containsKey(node))
+                BundleStartupOrchestrator.connect(node, links, stack, onStack, groups);
+        }
+        return groups;
+    }
+    /**
+     * Find the strongly connected groups reachable from this node (Tarjan).
+     * A group is added after all the groups it depends on.
+     * @return This node's {index, lowest reachable index}.
+     */
+    private static int[] connect(Node node, Map<Node, int[]> links, LinkedList<Node> stack, Set<Node> onStack, List<List<Node>> groups)
+    {
+        int[] link = new int[] {links.size(), links.size()};
+        links.put(node, link);
+        stack.push(node);
+        onStack.add(node);
+        for (Node dependency : node.dependencies)
+        {
+            int[] dependencyLink = links.get(dependency);
+            if (dependencyLink == null)
+                link[1] = Math.min(link[1], BundleStartupOrchestrator.connect(dependency, links, stack, onStack, groups)[1]);
+            else if (onStack.contains(dependency))
+                link[1] = Math.min(link[1], dependencyLink[0]);
+        }
+        if (link[1] == link[0])
+        {
+            TreeMap<Long, Node> group = new TreeMap<Long, Node>();
+            Node member = null;
+            do {
+                member = stack.pop();
+                onStack.remove(member);
+                group.put(member.bundle.getBundleId(), member);
+            } while (member != node);
+            groups.add(new ArrayList<Node>(group.values()));
+        }
+        return link;
+    }
+    /**
+     * Start the groups (in order), each one as soon as all the groups it depends on are active.
+     * @throws BundleException If a bundle won't start (the bundles that haven't started yet are not started)
+     */
+    protected void startBundles(List<List<Node>> groups)
+        throws BundleException
+    {
+        Map<Node, Integer> groupIndex = new HashMap<Node, Integer>();
+        List<Set<Integer>> dependents = new ArrayList<Set<Integer>>();
+        for (int i = 0; i < groups.size(); i++)
+        {
+            for (Node node : groups.get(i))
+            {
+                groupIndex.put(node, i);
+            }
+            dependents.add(new LinkedHashSet<Integer>());
+        }
+        int[] remaining = new int[groups.size()];
+        for (int i = 0; i < groups.size(); i++)
+        {
+            for (Node node : groups.get(i))
+            {
+                for (Node dependency : node.dependencies)
+                {
+                    int j = groupIndex.get(dependency);
+                    if ((j != i) && (dependents.get(j).add(i)))
+                        remaining[i]++;
+                }
+            }
+        }
+        LinkedList<Integer> ready = new LinkedList<Integer>();
+        for (int i = 0; i < groups.size(); i++)
+        {
+            if (remaining[i] == 0)
+                ready.add(i);
+        }
+        ExecutorCompletionService<Integer> completionService = new ExecutorCompletionService<Integer>(executor);
+        List<Future<Integer>> futures = new ArrayList<Future<Integer>>();
+        int running = 0;
+        try {
+            while ((!ready.isEmpty()) || (running > 0))
+            {
+                while ((!ready.isEmpty()) && (running < parallelism))
+                {
+                    int i = ready.removeFirst();
+                    futures.add(completionService.submit(new StartTask(groups.get(i), i)));
+                    running++;
+                }
+                int i = completionService.take().get();
+                running--;
+                for (int dependent : dependents.get(i))
+                {
+                    if (--remaining[dependent] == 0)
+                        ready.add(dependent);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new BundleException("Startup interrupted", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof BundleException)
+                throw (BundleException)e.getCause();
+            throw new BundleException("Startup failed", e.getCause());
+        } finally {
+            for (Future<Integer> future : futures)
+            {
+                future.cancel(true);    // Fail fast
+            }
+        }
+    }
+
+    /**
+     * Start one group of bundles, one at a time.
+     * A bundle that won't start throws its BundleException right away (so the other tasks are cancelled).
+     */
+    protected class StartTask
+        implements Callable<Integer>
+    {
+        protected List<Node> group = null;
+        protected int index = 0;
+
+        public StartTask(List<Node> group, int index)
+        {
+            this.group = group;
+            this.index = index;
+        }
+        public Integer call()
+            throws BundleException
+        {
+            for (Node node : group)
+            {
+                if ((node.bundle.getState() & Bundle.ACTIVE) != 0)
+                    continue;
+                node.bundle.start();
+                if ((node.bundle.getState() & Bundle.STARTING) != 0)
+                {   // Lazy activation (or another thread is starting it)
+                    if (ClassFinderActivator.waitFor(StartupTracker.getTracker(context).whenBundleStarted(node.bundle), secsToWait) == null)
+                        throw new BundleException("Bundle did not start: " + node.bundle.getSymbolicName());
+                }
+            }
+            return index;
+        }
+    }
+    /**
+     * A bundle in the dependency graph.
+     */
+    public static class Node
+    {
+        protected final Bundle bundle;
+        protected final Set<Node> dependencies = new LinkedHashSet<Node>();
+        protected final Set<Node> dependents = new LinkedHashSet<Node>();
+
+        public Node(Bundle bundle)
+        {
+            this.bundle = bundle;
+        }
+        public Bundle getBundle()
+        {
+            return bundle;
+        }
+        public Set<Node> getDependencies()
+        {
+            return dependencies;
+        }
+    }
+}
@@ -12,8 +12,9 @@ import org.osgi.framework.BundleListener;
  * RepositoryAdminServiceListener - Notify me when this dependent service is up.
  * 
  * @author don
- * 
+ * @deprecated Use StartupTracker.whenServiceStarted (BaseBundleService.checkDependentServicesAndStartup does).
  */
+@Deprecated
 public class DependentBundleStartupListener implements BundleListener
 {
 	BaseBundleService bundleService = null;
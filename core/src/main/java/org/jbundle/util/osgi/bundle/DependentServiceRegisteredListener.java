@@ -15,8 +15,9 @@ import org.osgi.service.log.LogService;
  * RepositoryAdminServiceListener - Notify me when this dependent service is up.
  * 
  * @author don
- * 
+ * @deprecated Use StartupTracker.whenServiceStarted (BaseBundleService.checkDependentServicesAndStartup does).
  */
+@Deprecated
 public class DependentServiceRegisteredListener implements ServiceListener
 {
 	BaseBundleService bundleService = null;
@@ -0,0 +1,285 @@
+/*
+ * Copyright © 2012 jbundle.org. All rights reserved.
+ */
+package org.jbundle.util.osgi.bundle;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.jbundle.util.osgi.finder.BaseClassFinderService;
+import org.osgi.framework.BundleContext;
+
+/**
+ * StartupScheduler - Runs the dependent bundle startup tasks.
+ * On a JVM with virtual threads (JDK 21+) each task gets a virtual thread, otherwise the
+ * tasks share a bounded pool of daemon threads. You can also supply your own executor.
+ * Tasks are grouped by owner (usually the bundle service) so they can be cancelled when the owner stops.
+ * 
+ * @author don
+ *
+ */
+public class StartupScheduler
+{
+    /**
+     * Executor type (virtual or pool) and pool size properties.
+     */
+    public static final String STARTUP_EXECUTOR_PARAM = "jbundle.startup.executor";
+    public static final String VIRTUAL = "virtual";
+    public static final String POOL = "pool";
+    public static final String STARTUP_THREADS_PARAM = "jbundle.startup.threads";
+    public static final int DEFAULT_STARTUP_THREADS = 16;
+
+    protected static StartupScheduler scheduler = null;
+
+    protected ExecutorService executor = null;
+    /**
+     * Owner to the tasks it has scheduled (synchronize on the map).
+     */
+    protected Map<Object, List<Future<?>>> ownerTasks = new HashMap<Object, List<Future<?>>>();
+
+    protected final AtomicInteger queued = new AtomicInteger();
+    protected final AtomicInteger running = new AtomicInteger();
+    protected final AtomicLong completed = new AtomicLong();
+    protected final AtomicLong totalQueueNanos = new AtomicLong();
+    protected final AtomicLong totalRunNanos = new AtomicLong();
+    protected final AtomicLong maxRunNanos = new AtomicLong();
+
+    /**
+     * Constructor.
+     * @param executor The executor to run the tasks.
+     */
+    public StartupScheduler(ExecutorService executor)
+    {
+        super();
+        this.executor = executor;
+    }
+    /**
+     * Get the startup scheduler, creating it if this is the first call.
+     * @param context The bundle context (for the configuration properties)
+     * @return The scheduler
+     */
+    public static synchronized StartupScheduler getScheduler(BundleContext context)
+    {
+        if (scheduler == null)
+            scheduler = new StartupScheduler(StartupScheduler.createExecutor(context));
+        return scheduler;
+    }
+    /**
+     * Get the startup scheduler if it has been created.
+     * @return The scheduler or null if no task has been scheduled yet.
+     */
+    public static synchronized StartupScheduler getExistingScheduler()
+    {
+        return scheduler;
+    }
+    /**
+     * Use this executor to run the startup tasks.
+     * Note: The current tasks keep running on the old executor.
+     * @param executor The new executor (null to go back to the default).
+     */
+    public static synchronized void setExecutor(ExecutorService executor)
+    {
+        if (scheduler != null)
+            scheduler.shutdown();
+        scheduler = (executor != null) ? new StartupScheduler(executor) : null;
+    }
+    /**
+     * Create the default executor.
+     * Use virtual threads if they are available (and not turned off), otherwise use a bounded pool.
+     * @param context The bundle context (for the configuration properties)
+     */
+    public static ExecutorService createExecutor(BundleContext context)
+    {
+        String type = (context != null) ? context.getProperty(STARTUP_EXECUTOR_PARAM) : null;
+        if (!POOL.equalsIgnoreCase(type))
+        {
+            try {   // Use reflection so this still runs on older jvms
+                Method method = java.util.concurrent.Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+                return (ExecutorService)method.invoke(null);
+            } catch (Exception e) {
+                // Not available, use a pool
+            }
+        }
+        int threads = Math.max(1, BaseClassFinderService.getIntProperty(context, STARTUP_THREADS_PARAM, DEFAULT_STARTUP_THREADS));
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+            public Thread newThread(Runnable runnable)
+            {
+                Thread thread = new Thread(runnable, "BundleStarter " + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        pool.allowCoreThreadTimeOut(true);
+        return pool;
+    }
+    /**
+     * Schedule this startup task.
+     * @param owner The owner (cancel(owner) will cancel this task).
+     * @param task The task
+     * @return The task's future
+     */
+    public Future<?> submit(Object owner, Runnable task)
+    {
+        StartupTask startupTask = new StartupTask(task);
+        queued.incrementAndGet();
+        this.track(owner, startupTask);
+        executor.execute(startupTask);
+        return startupTask;
+    }
+    /**
+     * Track this future, so it is cancelled if the owner stops.
+     * @param owner The owner
+     * @param future The future
+     */
+    public void track(Object owner, Future<?> future)
+    {
+        if (owner == null)
+            return;
+        synchronized (ownerTasks)
+        {
+            List<Future<?>> futures = ownerTasks.get(owner);
+            if (futures == null)
+                ownerTasks.put(owner, futures = new ArrayList<Future<?>>());
+            for (int i = futures.size() - 1; i >= 0; i--)
+            {
+                if (futures.get(i).isDone())
+                    futures.remove(i);  // Clean up as I go
+            }
+            futures.add(future);
+        }
+    }
+    /**
+     * Cancel this owner's startup tasks.
+     * @param owner The owner
+     * @return The number of tasks that were cancelled.
+     */
+    public int cancel(Object owner)
+    {
+        List<Future<?>> futures = null;
+        synchronized (ownerTasks)
+        {
+            futures = ownerTasks.remove(owner);
+        }
+        int count = 0;
+        if (futures != null)
+            for (Future<?> future : futures)
+        {
+            if (!future.isDone())
+                if (future.cancel(true))
+                    count++;
+        }
+        return count;
+    }
+    /**
+     * Stop the executor.
+     */
+    public void shutdown()
+    {
+        executor.shutdown();
+    }
+    /**
+     * Number of tasks waiting to start.
+     */
+    public int getQueueDepth()
+    {
+        return queued.get();
+    }
+    /**
+     * Number of tasks running now.
+     */
+    public int getActiveCount()
+    {
+        return running.get();
+    }
+    /**
+     * Number of tasks that have finished.
+     */
+    public long getCompletedCount()
+    {
+        return completed.get();
+    }
+    /**
+     * Average time a task waited to start (ms).
+     */
+    public double getAverageQueueMillis()
+    {
+        long count = completed.get() + running.get();
+        return (count == 0) ? 0.0 : totalQueueNanos.get() / (count * 1000000.0);
+    }
+    /**
+     * Average time a task ran (ms).
+     */
+    public double getAverageRunMillis()
+    {
+        long count = completed.get();
+        return (count == 0) ? 0.0 : totalRunNanos.get() / (count * 1000000.0);
+    }
+    /**
+     * Longest time a task ran (ms).
+     */
+    public double getMaxRunMillis()
+    {
+        return maxRunNanos.get() / 1000000.0;
+    }
+    /**
+     * A startup task that keeps the scheduler's counters.
+     */
+    protected class StartupTask extends FutureTask<Object>
+    {
+        protected final long queuedTime = System.nanoTime();
+        protected final AtomicBoolean started = new AtomicBoolean();
+
+        public StartupTask(Runnable task)
+        {
+            super(task, null);
+        }
+        @Override
+        public void run()
+        {
+            if (!started.compareAndSet(false, true))
+                return;     // Cancelled before it started
+            long startTime = System.nanoTime();
+            queued.decrementAndGet();
+            running.incrementAndGet();
+            totalQueueNanos.addAndGet(startTime - queuedTime);
+            try {
+                super.run();
+            } finally {
+                long runNanos = System.nanoTime() - startTime;
+                running.decrementAndGet();
+                completed.incrementAndGet();
+                totalRunNanos.addAndGet(runNanos);
+                long max = maxRunNanos.get();
+                while ((runNanos > max) && (!maxRunNanos.compareAndSet(max, runNanos)))
+                    max = maxRunNanos.get();
+            }
+        }
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning)
+        {
+            if (started.compareAndSet(false, true))
+                queued.decrementAndGet();   // It will never run
+            return super.cancel(mayInterruptIfRunning);
+        }
+    }
+    @Override
+    public String toString()
+    {
+        return "queued=" + this.getQueueDepth() + ", running=" + this.getActiveCount() + ", completed=" + this.getCompletedCount()
+            + ", avgQueueMs=" + this.getAverageQueueMillis() + ", avgRunMs=" + this.getAverageRunMillis() + ", maxRunMs=" + this.getMaxRunMillis();
+    }
+}
@@ -0,0 +1,53 @@
+/*
+ * Copyright © 2012 jbundle.org. All rights reserved.
+ */
+package org.jbundle.util.osgi.codec;
+
+/**
+ * CachingClassResolver - A class resolver that remembers the classes it resolved
+ * (in the cache for a bundle class loader), so each class is only resolved once.
+ * The decoders ask this resolver first (before the default class loader).
+ * @author don
+ *
+ */
+public class CachingClassResolver
+    implements ClassResolver
+{
+    protected ClassResolutionCache cache = null;
+
+    protected ClassResolver resolver = null;
+
+    /**
+     * Constructor.
+     * @param classLoader The (bundle) class loader whose cache to use
+     * @param resolver Resolves the classes that aren't cached
+     */
+    public CachingClassResolver(ClassLoader classLoader, ClassResolver resolver)
+    {
+        super();
+        this.cache = ClassResolutionCache.getCache(classLoader);
+        this.resolver = resolver;
+    }
+    @Override
+    public Class<?> resolveClass(String className)
+        throws ClassNotFoundException
+    {
+        return this.resolveClass(className, ClassResolutionCache.NO_UID);
+    }
+    /**
+     * Find this class (in the cache first).
+     * @param className The descriptor name
+     * @param serialVersionUID The descriptor serialVersionUID
+     */
+    public Class<?> resolveClass(String className, long serialVersionUID)
+        throws ClassNotFoundException
+    {
+        Class<?> c = cache.get(className, serialVersionUID);
+        if (c == null)
+        {
+            c = resolver.resolveClass(className);
+            cache.put(className, serialVersionUID, c);
+        }
+        return c;
+    }
+}
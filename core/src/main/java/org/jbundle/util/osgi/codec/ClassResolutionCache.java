@@ -0,0 +1,100 @@
+/*
+ * Copyright © 2012 jbundle.org. All rights reserved.
+ */
+package org.jbundle.util.osgi.codec;
+
+import java.lang.ref.WeakReference;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.jbundle.util.osgi.finder.CacheStats;
+
+/**
+ * ClassResolutionCache - The classes resolved while decoding, for one (bundle) class loader.
+ * The classes are keyed by the descriptor name and serialVersionUID.
+ * The caches and the classes are weakly held, so a discarded class loader is not kept alive;
+ * call {@link #clearAll()} when a bundle is refreshed.
+ * @author don
+ *
+ */
+public class ClassResolutionCache
+{
+    /**
+     * Use this serialVersionUID when the stream doesn't have one.
+     */
+    public static final long NO_UID = 0L;
+
+    protected static final Map<ClassLoader, ClassResolutionCache> caches = new WeakHashMap<ClassLoader, ClassResolutionCache>();
+
+    protected static final CacheStats stats = new CacheStats();
+
+    protected final Map<String, WeakReference<Class<?>>> classes = new ConcurrentHashMap<String, WeakReference<Class<?>>>();
+
+    /**
+     * Constructor.
+     */
+    protected ClassResolutionCache()
+    {
+        super();
+    }
+    /**
+     * Get the cache for this class loader.
+     */
+    public static ClassResolutionCache getCache(ClassLoader classLoader)
+    {
+        synchronized (caches)
+        {
+            ClassResolutionCache cache = caches.get(classLoader);
+            if (cache == null)
+                caches.put(classLoader, cache = new ClassResolutionCache());
+            return cache;
+        }
+    }
+    /**
+     * Clear all the caches (ie., a bundle was refreshed).
+     */
+    public static void clearAll()
+    {
+        synchronized (caches)
+        {
+            for (ClassResolutionCache cache : caches.values())
+            {
+                stats.recordEviction();
+                cache.classes.clear();
+            }
+        }
+    }
+    /**
+     * Get the hit and miss counters (for all the class loaders).
+     */
+    public static CacheStats getStats()
+    {
+        return stats;
+    }
+    /**
+     * Get the cached class.
+     * @return The class or null if it isn't cached.
+     */
+    public Class<?> get(String className, long serialVersionUID)
+    {
+        WeakReference<Class<?>> reference = classes.get(ClassResolutionCache.getKey(className, serialVersionUID));
+        Class<?> c = (reference != null) ? reference.get() : null;
+        if (c != null)
+            stats.recordHit();
+        else
+            stats.recordMiss();
+        return c;
+    }
+    /**
+     * Cache this class.
+     */
+    public void put(String className, long serialVersionUID, Class<?> c)
+    {
+        classes.put(ClassResolutionCache.getKey(className, serialVersionUID), new WeakReference<Class<?>>(c));
+    }
+    private static String getKey(String className, long serialVersionUID)
+    {
+        return className + '#' + serialVersionUID;
+    }
+}
@@ -0,0 +1,21 @@
+/*
+ * Copyright © 2012 jbundle.org. All rights reserved.
+ */
+package org.jbundle.util.osgi.codec;
+
+/**
+ * ClassResolver - Find the class for a name in a decoded stream.
+ * @author don
+ *
+ */
+public interface ClassResolver
+{
+    /**
+     * Find this class.
+     * @param className The full class name
+     * @return The class (never null)
+     * @throws ClassNotFoundException If the class can't be found
+     */
+    public Class<?> resolveClass(String className)
+        throws ClassNotFoundException;
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright © 2012 jbundle.org. All rights reserved.
+ */
+package org.jbundle.util.osgi.codec;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectStreamClass;
+import java.lang.reflect.Proxy;
+
+/**
+ * CodecObjectInputStream - An object input stream that asks a class resolver for the
+ * classes (and proxy interfaces) that the default class loader can't see.
+ * @author don
+ *
+ */
+public class CodecObjectInputStream extends ObjectInputStream
+{
+    protected ClassResolver resolver = null;
+
+    /**
+     * Constructor.
+     * @param in The input stream
+     * @param resolver The class resolver (null = use the default only)
+     */
+    public CodecObjectInputStream(InputStream in, ClassResolver resolver)
+        throws IOException
+    {
+        super(in);
+        this.resolver = resolver;
+    }
+    /**
+     * Resolve this class, asking the resolver if the default class loader can't find it.
+     */
+    @Override
+    protected Class<?> resolveClass(ObjectStreamClass desc)
+        throws IOException, ClassNotFoundException
+    {
+        if (resolver instanceof CachingClassResolver)
+        {   // The resolved classes are cached (by class loader)
+            try {
+                return ((CachingClassResolver)resolver).resolveClass(desc.getName(), desc.getSerialVersionUID());
+            } catch (ClassNotFoundException e) {
+                return super.resolveClass(desc);    // ie., primitive types
+            }
+        }
+        try {
+            return super.resolveClass(desc);
+        } catch (ClassNotFoundException e) {
+            if (resolver == null)
+                throw e;
+            return resolver.resolveClass(desc.getName());
+        }
+    }
+    /**
+     * Resolve this proxy class, asking the resolver for the interfaces the default class loader can't find.
+     * The proxy is defined in the first interface class loader that can see all the interfaces.
+     * Note: getProxyClass is deprecated (since java 9), but it is what ObjectInputStream uses here too.
+     */
+    @Override
+    @SuppressWarnings("deprecation")
+    protected Class<?> resolveProxyClass(String[] interfaces)
+        throws IOException, ClassNotFoundException
+    {
+        try {
+            return super.resolveProxyClass(interfaces);
+        } catch (ClassNotFoundException e) {
+            if (resolver == null)
+                throw e;
+            Class<?>[] classes = new Class<?>[interfaces.length];
+            for (int i = 0; i < interfaces.length; i++)
+            {
+                classes[i] = resolver.resolveClass(interfaces[i]);
+            }
+            for (Class<?> c : classes)
+            {
+                try {
+                    return Proxy.getProxyClass(c.getClassLoader(), classes);
+                } catch (IllegalArgumentException ex) {
+                    // Not all the interfaces are visible from this class loader, try the next one
+                }
+            }
+            throw e;
+        }
+    }
+}
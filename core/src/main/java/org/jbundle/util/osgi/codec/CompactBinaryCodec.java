@@ -0,0 +1,1253 @@
+/*
+ * Copyright © 2012 jbundle.org. All rights reserved.
+ */
+package org.jbundle.util.osgi.codec;
+
+import java.io.EOFException;
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.InvalidClassException;
+import java.io.NotSerializableException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.io.StreamCorruptedException;
+import java.lang.reflect.Array;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.Proxy;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Hashtable;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.SortedSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.Vector;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * CompactBinaryCodec - A compact binary encoding of serializable object graphs.
+ * Each class is written once per payload (name and field names) and referred to by a small id
+ * after that; numbers are variable length and shared objects are written once (back references).
+ * The field layout of each class is worked out once and cached.
+ * Fields are matched by name when decoding, so added or removed fields are tolerated.
+ * Objects are created the way java serialization creates them (only the constructor of the first
+ * non-serializable superclass is run), so field initializers and constructors are not run.
+ * If the graph has an object that can't be written this way (writeObject, readResolve, Externalizable,
+ * a sorted collection with a comparator, etc.) the whole graph is written as one embedded java
+ * serialization stream, so shared references and cycles are always kept.
+ * @author don
+ *
+ */
+public class CompactBinaryCodec
+    implements ObjectCodec
+{
+    public static final byte CODEC_ID = 1;
+    public static final String NAME = "compact";
+
+    public static final CompactBinaryCodec INSTANCE = new CompactBinaryCodec();
+
+    /**
+     * Value tags.
+     */
+    protected static final int NULL = 0;
+    protected static final int TRUE = 1;
+    protected static final int FALSE = 2;
+    protected static final int BYTE = 3;
+    protected static final int SHORT = 4;
+    protected static final int CHAR = 5;
+    protected static final int INT = 6;
+    protected static final int LONG = 7;
+    protected static final int FLOAT = 8;
+    protected static final int DOUBLE = 9;
+    protected static final int STRING = 10;
+    protected static final int REFERENCE = 11;
+    protected static final int ENUM = 12;
+    protected static final int ARRAY = 13;
+    protected static final int DATE = 14;
+    protected static final int COLLECTION = 15;
+    protected static final int MAP = 16;
+    protected static final int OBJECT = 17;
+    protected static final int JAVA = 18;
+
+    /**
+     * The layout of each class (computed once per class).
+     */
+    protected static final ClassValue<ClassSchema> schemas = new ClassValue<ClassSchema>() {
+        @Override
+        protected ClassSchema computeValue(Class<?> type)
+        {
+            return new ClassSchema(type);
+        }
+    };
+
+    /**
+     * Constructor.
+     */
+    public CompactBinaryCodec()
+    {
+        super();
+    }
+    @Override
+    public byte getCodecId()
+    {
+        return CODEC_ID;
+    }
+    @Override
+    public String getName()
+    {
+        return NAME;
+    }
+    @Override
+    public byte[] encode(Object object)
+        throws IOException
+    {
+        Encoder encoder = new Encoder();
+        encoder.out.writeByte(ObjectCodecs.CODEC_HEADER);
+        encoder.out.writeByte(CODEC_ID);
+        try {
+            encoder.writeValue(object);
+        } catch (JavaSerializationRequired e) {
+            encoder = new Encoder();    // Start over and embed the whole graph (so no object is written twice)
+            encoder.out.writeByte(ObjectCodecs.CODEC_HEADER);
+            encoder.out.writeByte(CODEC_ID);
+            encoder.out.writeByte(JAVA);
+            byte[] data = JavaSerializationCodec.INSTANCE.encode(object);
+            encoder.out.writeVarInt(data.length);
+            encoder.out.writeBytes(data, 0, data.length);
+        }
+        return encoder.out.toByteArray();
+    }
+    @Override
+    public Object decode(byte[] data, int offset, int length, ClassResolver resolver)
+        throws IOException, ClassNotFoundException
+    {
+        return new Decoder(new Input(data, offset, length), resolver).readValue();
+    }
+    /**
+     * Get the (cached) layout of this class.
+     */
+    public static ClassSchema getSchema(Class<?> type)
+    {
+        return schemas.get(type);
+    }
+
+    /**
+     * Writes one object graph.
+     */
+    protected static class Encoder
+    {
+        protected final Output out = new Output();
+        protected final Map<Class<?>, Integer> classIds = new HashMap<Class<?>, Integer>();
+        protected final Map<Object, Integer> references = new IdentityHashMap<Object, Integer>();
+
+        public void writeValue(Object value)
+            throws IOException
+        {
+            if (value == null)
+            {
+                out.writeByte(NULL);
+                return;
+            }
+            Class<?> type = value.getClass();
+            if (type == String.class)
+            {
+                out.writeByte(STRING);
+                out.writeString((String)value);
+            }
+            else if (type == Integer.class)
+            {
+                out.writeByte(INT);
+                out.writeSignedInt((Integer)value);
+            }
+            else if (type == Long.class)
+            {
+                out.writeByte(LONG);
+                out.writeSignedLong((Long)value);
+            }
+            else if (type == Boolean.class)
+                out.writeByte(((Boolean)value) ? TRUE : FALSE);
+            else if (type == Double.class)
+            {
+                out.writeByte(DOUBLE);
+                out.writeLong(Double.doubleToLongBits((Double)value));
+            }
+            else if (type == Float.class)
+            {
+                out.writeByte(FLOAT);
+                out.writeInt(Float.floatToIntBits((Float)value));
+            }
+            else if (type == Short.class)
+            {
+                out.writeByte(SHORT);
+                out.writeSignedInt((Short)value);
+            }
+            else if (type == Byte.class)
+            {
+                out.writeByte(BYTE);
+                out.writeByte((Byte)value);
+            }
+            else if (type == Character.class)
+            {
+                out.writeByte(CHAR);
+                out.writeVarInt((Character)value);
+            }
+            else if (value instanceof Enum)
+            {
+                out.writeByte(ENUM);
+                this.writeClass(((Enum<?>)value).getDeclaringClass());
+                out.writeString(((Enum<?>)value).name());
+            }
+            else
+            {
+                Integer reference = references.get(value);
+                if (reference != null)
+                {
+                    out.writeByte(REFERENCE);
+                    out.writeVarInt(reference);
+                    return;
+                }
+                references.put(value, references.size());
+                if (type.isArray())
+                    this.writeArray(value, type.getComponentType());
+                else if (type == Date.class)
+                {
+                    out.writeByte(DATE);
+                    out.writeSignedLong(((Date)value).getTime());
+                }
+                else
+                {
+                    ClassSchema schema = CompactBinaryCodec.getSchema(type);
+                    int kind = schema.kind;
+                    if ((value instanceof SortedSet) && (((SortedSet<?>)value).comparator() != null))
+                        kind = ClassSchema.JAVA_KIND;   // Comparator would be lost
+                    if ((value instanceof SortedMap) && (((SortedMap<?, ?>)value).comparator() != null))
+                        kind = ClassSchema.JAVA_KIND;
+                    if ((value instanceof PriorityQueue) && (((PriorityQueue<?>)value).comparator() != null))
+                        kind = ClassSchema.JAVA_KIND;
+                    if (ClassSchema.isAccessOrdered(value))
+                        kind = ClassSchema.JAVA_KIND;
+                    switch (kind)
+                    {
+                    case ClassSchema.COLLECTION_KIND:
+                        out.writeByte(COLLECTION);
+                        this.writeClass(type);
+                        Collection<?> collection = (Collection<?>)value;
+                        out.writeVarInt(collection.size());
+                        for (Object element : collection)
+                        {
+                            this.writeValue(element);
+                        }
+                        break;
+                    case ClassSchema.MAP_KIND:
+                        out.writeByte(MAP);
+                        this.writeClass(type);
+                        Map<?, ?> map = (Map<?, ?>)value;
+                        out.writeVarInt(map.size());
+                        for (Map.Entry<?, ?> entry : map.entrySet())
+                        {
+                            this.writeValue(entry.getKey());
+                            this.writeValue(entry.getValue());
+                        }
+                        break;
+                    case ClassSchema.OBJECT_KIND:
+                        out.writeByte(OBJECT);
+                        this.writeClass(type);
+                        this.writeFields(value, schema);
+                        break;
+                    case ClassSchema.JAVA_KIND:
+                        throw new JavaSerializationRequired(type.getName());
+                    default:
+                        throw new NotSerializableException(type.getName());
+                    }
+                }
+            }
+        }
+        /**
+         * Write the class id (and the class definition the first time it is used).
+         */
+        public void writeClass(Class<?> type)
+        {
+            Integer classId = classIds.get(type);
+            if (classId != null)
+            {
+                out.writeVarInt(classId);
+                return;
+            }
+            classId = classIds.size();
+            classIds.put(type, classId);
+            out.writeVarInt(classId);
+            out.writeString(type.getName());
+            ClassSchema schema = CompactBinaryCodec.getSchema(type);
+            if (schema.kind != ClassSchema.OBJECT_KIND)
+                out.writeVarInt(0);
+            else
+            {
+                out.writeVarInt(schema.fields.length);
+                for (int i = 0; i < schema.fields.length; i++)
+                {
+                    out.writeString(schema.names[i]);
+                    out.writeByte(schema.typeCodes[i]);
+                }
+            }
+        }
+        /**
+         * Write the field values (primitives are written without a tag).
+         */
+        public void writeFields(Object value, ClassSchema schema)
+            throws IOException
+        {
+            try {
+                for (int i = 0; i < schema.fields.length; i++)
+                {
+                    Field field = schema.fields[i];
+                    switch (schema.typeCodes[i])
+                    {
+                    case 'Z':
+                        out.writeByte(field.getBoolean(value) ? 1 : 0);
+                        break;
+                    case 'B':
+                        out.writeByte(field.getByte(value));
+                        break;
+                    case 'C':
+                        out.writeVarInt(field.getChar(value));
+                        break;
+                    case 'S':
+                        out.writeSignedInt(field.getShort(value));
+                        break;
+                    case 'I':
+                        out.writeSignedInt(field.getInt(value));
+                        break;
+                    case 'J':
+                        out.writeSignedLong(field.getLong(value));
+                        break;
+                    case 'F':
+                        out.writeInt(Float.floatToIntBits(field.getFloat(value)));
+                        break;
+                    case 'D':
+                        out.writeLong(Double.doubleToLongBits(field.getDouble(value)));
+                        break;
+                    default:
+                        this.writeValue(field.get(value));
+                        break;
+                    }
+                }
+            } catch (IllegalAccessException e) {
+                throw new InvalidClassException(schema.type.getName(), e.getMessage());
+            }
+        }
+        /**
+         * Write an array (primitive arrays are written without tags).
+         */
+        public void writeArray(Object array, Class<?> componentType)
+            throws IOException
+        {
+            out.writeByte(ARRAY);
+            this.writeClass(componentType);
+            int length = Array.getLength(array);
+            out.writeVarInt(length);
+            if (componentType == byte.class)
+                out.writeBytes((byte[])array, 0, length);
+            else if (componentType == int.class)
+                for (int value : (int[])array)
+                    out.writeSignedInt(value);
+            else if (componentType == long.class)
+                for (long value : (long[])array)
+                    out.writeSignedLong(value);
+            else if (componentType == char.class)
+                for (char value : (char[])array)
+                    out.writeVarInt(value);
+            else if (componentType == short.class)
+                for (short value : (short[])array)
+                    out.writeSignedInt(value);
+            else if (componentType == boolean.class)
+                for (boolean value : (boolean[])array)
+                    out.writeByte(value ? 1 : 0);
+            else if (componentType == float.class)
+                for (float value : (float[])array)
+                    out.writeInt(Float.floatToIntBits(value));
+            else if (componentType == double.class)
+                for (double value : (double[])array)
+                    out.writeLong(Double.doubleToLongBits(value));
+            else
+                for (Object value : (Object[])array)
+                    this.writeValue(value);
+        }
+    }
+
+    /**
+     * Reads one object graph.
+     */
+    protected static class Decoder
+    {
+        protected final Input in;
+        protected final ClassResolver resolver;
+        protected final List<ClassDefinition> classes = new ArrayList<ClassDefinition>();
+        protected final List<Object> references = new ArrayList<Object>();
+
+        public Decoder(Input in, ClassResolver resolver)
+        {
+            this.in = in;
+            this.resolver = resolver;
+        }
+        @SuppressWarnings({ "unchecked", "rawtypes" })
+        public Object readValue()
+            throws IOException, ClassNotFoundException
+        {
+            int tag = in.readByte();
+            switch (tag)
+            {
+            case NULL:
+                return null;
+            case TRUE:
+                return Boolean.TRUE;
+            case FALSE:
+                return Boolean.FALSE;
+            case BYTE:
+                return (byte)in.readByte();
+            case SHORT:
+                return (short)in.readSignedInt();
+            case CHAR:
+                return (char)in.readVarInt();
+            case INT:
+                return in.readSignedInt();
+            case LONG:
+                return in.readSignedLong();
+            case FLOAT:
+                return Float.intBitsToFloat(in.readInt());
+            case DOUBLE:
+                return Double.longBitsToDouble(in.readLong());
+            case STRING:
+                return in.readString();
+            case REFERENCE:
+                int reference = in.readVarInt();
+                if (reference >= references.size())
+                    throw new StreamCorruptedException("Bad reference: " + reference);
+                return references.get(reference);
+            case ENUM:
+                Class enumClass = this.readClass().type;
+                return Enum.valueOf(enumClass, in.readString());
+            case ARRAY:
+                return this.readArray(this.readClass().type);
+            case DATE:
+                Date date = new Date(in.readSignedLong());
+                references.add(date);
+                return date;
+            case COLLECTION:
+                ClassDefinition collectionClass = this.readClass();
+                Collection<Object> collection = (Collection<Object>)collectionClass.schema.newInstance();
+                references.add(collection);
+                for (int size = in.readLength(); size > 0; size--)
+                {
+                    collection.add(this.readValue());
+                }
+                return collection;
+            case MAP:
+                ClassDefinition mapClass = this.readClass();
+                Map<Object, Object> map = (Map<Object, Object>)mapClass.schema.newInstance();
+                references.add(map);
+                for (int size = in.readLength(); size > 0; size--)
+                {
+                    Object key = this.readValue();
+                    map.put(key, this.readValue());
+                }
+                return map;
+            case OBJECT:
+                ClassDefinition objectClass = this.readClass();
+                Object object = objectClass.schema.newInstance();
+                references.add(object);
+                this.readFields(object, objectClass);
+                return object;
+            case JAVA:
+                int index = references.size();
+                references.add(null);   // Reserve the reference
+                int length = in.readVarInt();
+                int offset = in.skip(length);
+                Object value = JavaSerializationCodec.INSTANCE.decode(in.data, offset, length, resolver);
+                references.set(index, value);
+                return value;
+            default:
+                throw new StreamCorruptedException("Bad tag: " + tag);
+            }
+        }
+        /**
+         * Read the class id (and the class definition the first time it is used).
+         */
+        public ClassDefinition readClass()
+            throws IOException, ClassNotFoundException
+        {
+            int classId = in.readVarInt();
+            if (classId < classes.size())
+                return classes.get(classId);
+            if (classId != classes.size())
+                throw new StreamCorruptedException("Bad class id: " + classId);
+            Class<?> type = this.resolveClass(in.readString());
+            int count = in.readVarInt();
+            String[] names = new String[count];
+            byte[] typeCodes = new byte[count];
+            for (int i = 0; i < count; i++)
+            {
+                names[i] = in.readString();
+                typeCodes[i] = (byte)in.readByte();
+            }
+            ClassDefinition definition = new ClassDefinition(CompactBinaryCodec.getSchema(type), names, typeCodes);
+            classes.add(definition);
+            return definition;
+        }
+        /**
+         * Resolve this class name (array and primitive names included).
+         */
+        public Class<?> resolveClass(String className)
+            throws ClassNotFoundException
+        {
+            Class<?> type = ClassSchema.getPrimitiveClass(className);
+            if (type != null)
+                return type;
+            if (className.startsWith("["))
+            {   // ie., [[Lcom.a.B;
+                int dimensions = className.lastIndexOf('[') + 1;
+                String elementName = className.substring(dimensions);
+                Class<?> elementType = null;
+                if (elementName.startsWith("L"))
+                    elementType = this.resolveClass(elementName.substring(1, elementName.length() - 1));
+                else
+                    elementType = ClassSchema.getPrimitiveClass(elementName);
+                if (elementType == null)
+                    throw new ClassNotFoundException(className);
+                return Array.newInstance(elementType, new int[dimensions]).getClass();
+            }
+            if (resolver instanceof CachingClassResolver)
+            {   // The resolved classes are cached (by class loader)
+                try {
+                    return resolver.resolveClass(className);
+                } catch (ClassNotFoundException e) {
+                    // Try the default class loader
+                }
+            }
+            try {
+                return Class.forName(className, false, CompactBinaryCodec.class.getClassLoader());
+            } catch (ClassNotFoundException e) {
+                if ((resolver == null) || (resolver instanceof CachingClassResolver))
+                    throw e;    // Already asked
+                return resolver.resolveClass(className);
+            }
+        }
+        /**
+         * Read the fields that are in the stream into the matching fields of this object.
+         */
+        public void readFields(Object object, ClassDefinition definition)
+            throws IOException, ClassNotFoundException
+        {
+            try {
+                for (int i = 0; i < definition.typeCodes.length; i++)
+                {
+                    Field field = definition.fields[i];
+                    switch (definition.typeCodes[i])
+                    {
+                    case 'Z':
+                        boolean booleanValue = (in.readByte() != 0);
+                        if (field != null)
+                            field.setBoolean(object, booleanValue);
+                        break;
+                    case 'B':
+                        byte byteValue = (byte)in.readByte();
+                        if (field != null)
+                            field.setByte(object, byteValue);
+                        break;
+                    case 'C':
+                        char charValue = (char)in.readVarInt();
+                        if (field != null)
+                            field.setChar(object, charValue);
+                        break;
+                    case 'S':
+                        short shortValue = (short)in.readSignedInt();
+                        if (field != null)
+                            field.setShort(object, shortValue);
+                        break;
+                    case 'I':
+                        int intValue = in.readSignedInt();
+                        if (field != null)
+                            field.setInt(object, intValue);
+                        break;
+                    case 'J':
+                        long longValue = in.readSignedLong();
+                        if (field != null)
+                            field.setLong(object, longValue);
+                        break;
+                    case 'F':
+                        float floatValue = Float.intBitsToFloat(in.readInt());
+                        if (field != null)
+                            field.setFloat(object, floatValue);
+                        break;
+                    case 'D':
+                        double doubleValue = Double.longBitsToDouble(in.readLong());
+                        if (field != null)
+                            field.setDouble(object, doubleValue);
+                        break;
+                    default:
+                        Object value = this.readValue();
+                        if (field != null)
+                        {
+                            if ((value != null) && (!field.getType().isInstance(value)))
+                                throw new InvalidClassException(definition.schema.type.getName(), "Incompatible type for field " + field.getName());
+                            field.set(object, value);
+                        }
+                        break;
+                    }
+                }
+            } catch (IllegalAccessException e) {
+                throw new InvalidClassException(definition.schema.type.getName(), e.getMessage());
+            }
+        }
+        /**
+         * Read an array.
+         */
+        public Object readArray(Class<?> componentType)
+            throws IOException, ClassNotFoundException
+        {
+            int length = in.readLength();
+            Object array = Array.newInstance(componentType, length);
+            references.add(array);
+            if (componentType == byte.class)
+                System.arraycopy(in.data, in.skip(length), array, 0, length);
+            else if (componentType == int.class)
+            {
+                int[] values = (int[])array;
+                for (int i = 0; i < length; i++)
+                    values[i] = in.readSignedInt();
+            }
+            else if (componentType == long.class)
+            {
+                long[] values = (long[])array;
+                for (int i = 0; i < length; i++)
+                    values[i] = in.readSignedLong();
+            }
+            else if (componentType == char.class)
+            {
+                char[] values = (char[])array;
+                for (int i = 0; i < length; i++)
+                    values[i] = (char)in.readVarInt();
+            }
+            else if (componentType == short.class)
+            {
+                short[] values = (short[])array;
+                for (int i = 0; i < length; i++)
+                    values[i] = (short)in.readSignedInt();
+            }
+            else if (componentType == boolean.class)
+            {
+                boolean[] values = (boolean[])array;
+                for (int i = 0; i < length; i++)
+                    values[i] = (in.readByte() != 0);
+            }
+            else if (componentType == float.class)
+            {
+                float[] values = (float[])array;
+                for (int i = 0; i < length; i++)
+                    values[i] = Float.intBitsToFloat(in.readInt());
+            }
+            else if (componentType == double.class)
+            {
+                double[] values = (double[])array;
+                for (int i = 0; i < length; i++)
+                    values[i] = Double.longBitsToDouble(in.readLong());
+            }
+            else
+            {
+                Object[] values = (Object[])array;
+                for (int i = 0; i < length; i++)
+                {
+                    Object value = this.readValue();
+                    if ((value != null) && (!componentType.isInstance(value)))
+                        throw new InvalidClassException(componentType.getName(), "Incompatible array element");
+                    values[i] = value;
+                }
+            }
+            return array;
+        }
+    }
+
+    /**
+     * The serialized layout of a class.
+     */
+    public static class ClassSchema
+    {
+        public static final int NOT_SERIALIZABLE_KIND = 0;
+        public static final int OBJECT_KIND = 1;
+        public static final int COLLECTION_KIND = 2;
+        public static final int MAP_KIND = 3;
+        public static final int JAVA_KIND = 4;
+
+        protected static final Field[] NO_FIELDS = new Field[0];
+        /**
+         * The collections and maps that are written as their elements (and rebuilt with their no-args constructor).
+         */
+        protected static final Set<Class<?>> CONTAINERS = new HashSet<Class<?>>(Arrays.<Class<?>>asList(
+            ArrayList.class, LinkedList.class, Vector.class, ArrayDeque.class, PriorityQueue.class,
+            HashSet.class, LinkedHashSet.class, TreeSet.class,
+            HashMap.class, LinkedHashMap.class, TreeMap.class, Hashtable.class, IdentityHashMap.class,
+            ConcurrentHashMap.class, ConcurrentSkipListMap.class, ConcurrentSkipListSet.class,
+            ConcurrentLinkedQueue.class, CopyOnWriteArrayList.class));
+
+        protected final Class<?> type;
+        protected final int kind;
+        protected final Constructor<?> constructor;
+        protected final Field[] fields;
+        protected final String[] names;
+        protected final byte[] typeCodes;
+        protected final Map<String, Integer> fieldIndex = new HashMap<String, Integer>();
+
+        public ClassSchema(Class<?> type)
+        {
+            this.type = type;
+            Constructor<?> constructor = null;
+            Field[] fields = NO_FIELDS;
+            int kind = NOT_SERIALIZABLE_KIND;
+            if ((Serializable.class.isAssignableFrom(type)) && (!type.isArray()) && (!type.isEnum()))
+            {
+                kind = JAVA_KIND;
+                if (CONTAINERS.contains(type))
+                {   // Rebuilt from their elements (like their own readObject does)
+                    try {
+                        constructor = type.getDeclaredConstructor();
+                        kind = (Collection.class.isAssignableFrom(type)) ? COLLECTION_KIND : MAP_KIND;
+                    } catch (NoSuchMethodException e) {
+                        constructor = null;
+                    }
+                }
+                else if ((!Modifier.isAbstract(type.getModifiers())) && (!Externalizable.class.isAssignableFrom(type)) && (!Proxy.isProxyClass(type))
+                    && (!ClassSchema.isRecord(type)) && (!ClassSchema.hasCustomSerialization(type)))
+                {
+                    try {
+                        constructor = ClassSchema.getSerializationConstructor(type);
+                        if (constructor != null)
+                        {
+                            fields = ClassSchema.getSerializableFields(type);
+                            kind = OBJECT_KIND;
+                        }
+                    } catch (RuntimeException e) {  // Not accessible (SecurityException or a module that isn't open)
+                        constructor = null;
+                        fields = NO_FIELDS;
+                    }
+                }
+            }
+            this.kind = kind;
+            this.constructor = constructor;
+            this.fields = fields;
+            this.names = new String[fields.length];
+            this.typeCodes = new byte[fields.length];
+            for (int i = 0; i < fields.length; i++)
+            {
+                names[i] = fields[i].getName();
+                if (fieldIndex.containsKey(names[i]))
+                    names[i] = fields[i].getDeclaringClass().getName() + '.' + names[i];    // Hidden by a subclass field
+                fieldIndex.put(names[i], i);
+                typeCodes[i] = ClassSchema.getTypeCode(fields[i].getType());
+            }
+        }
+        /**
+         * Create an empty instance of this class.
+         */
+        public Object newInstance()
+            throws IOException
+        {
+            if ((constructor == null) || (kind == JAVA_KIND) || (kind == NOT_SERIALIZABLE_KIND))
+                throw new InvalidClassException(type.getName(), "No usable constructor");
+            try {
+                return constructor.newInstance();
+            } catch (Exception e) {
+                InvalidClassException ex = new InvalidClassException(type.getName(), "Can't create instance");
+                ex.initCause(e);
+                throw ex;
+            }
+        }
+        /**
+         * Get the field with this (stream) name and type code.
+         * @return The field or null if there isn't a compatible field.
+         */
+        public Field getField(String name, byte typeCode)
+        {
+            Integer index = fieldIndex.get(name);
+            if ((index == null) || (typeCodes[index] != typeCode))
+                return null;
+            return fields[index];
+        }
+        /**
+         * Get the constructor that creates this class the way java serialization does
+         * (the no-args constructor of the first non-serializable superclass).
+         * @return The constructor or null if there isn't one I can use.
+         */
+        public static Constructor<?> getSerializationConstructor(Class<?> type)
+        {
+            if (NEW_CONSTRUCTOR_FOR_SERIALIZATION == null)
+                return null;
+            Class<?> base = type;
+            while (Serializable.class.isAssignableFrom(base))
+            {
+                base = base.getSuperclass();
+                if (base == null)
+                    return null;
+            }
+            try {
+                Constructor<?> baseConstructor = base.getDeclaredConstructor();
+                int modifiers = baseConstructor.getModifiers();
+                if (Modifier.isPrivate(modifiers))
+                    return null;
+                if ((!Modifier.isPublic(modifiers)) && (!Modifier.isProtected(modifiers))
+                    && ((base.getClassLoader() != type.getClassLoader()) || (!ClassSchema.getPackageName(base).equals(ClassSchema.getPackageName(type)))))
+                    return null;    // Same rule as java serialization
+                Constructor<?> constructor = (Constructor<?>)NEW_CONSTRUCTOR_FOR_SERIALIZATION.invoke(REFLECTION_FACTORY, type, baseConstructor);
+                if (constructor != null)
+                    constructor.setAccessible(true);
+                return constructor;
+            } catch (ReflectiveOperationException e) {
+                return null;
+            }
+        }
+        private static String getPackageName(Class<?> type)
+        {
+            String name = type.getName();
+            return (name.lastIndexOf('.') == -1) ? "" : name.substring(0, name.lastIndexOf('.'));
+        }
+        /**
+         * The jvm's reflection factory (creates the java serialization constructors).
+         * It is looked up by name, so without it every object is written with java serialization.
+         */
+        private static final Object REFLECTION_FACTORY = ClassSchema.getReflectionFactory();
+        private static final Method NEW_CONSTRUCTOR_FOR_SERIALIZATION = (REFLECTION_FACTORY == null) ? null : ClassSchema.getMethod(REFLECTION_FACTORY.getClass(), "newConstructorForSerialization", Class.class, Constructor.class);
+        private static Object getReflectionFactory()
+        {
+            try {
+                return Class.forName("sun.reflect.ReflectionFactory").getMethod("getReflectionFactory").invoke(null);
+            } catch (Exception e) {
+                return null;
+            } catch (LinkageError e) {
+                return null;
+            }
+        }
+        private static Method getMethod(Class<?> type, String name, Class<?>... parameterTypes)
+        {
+            try {
+                return type.getMethod(name, parameterTypes);
+            } catch (Exception e) {
+                return null;
+            }
+        }
+        /**
+         * Is this a record (records are always created through their canonical constructor)?
+         */
+        public static boolean isRecord(Class<?> type)
+        {
+            return (type.getSuperclass() != null) && ("java.lang.Record".equals(type.getSuperclass().getName()));
+        }
+        /**
+         * Is this an access ordered LinkedHashMap (the order mode would be lost)?
+         */
+        public static boolean isAccessOrdered(Object map)
+        {
+            if ((!(map instanceof LinkedHashMap)) || (ACCESS_ORDER == null))
+                return false;
+            try {
+                return ACCESS_ORDER.getBoolean(map);
+            } catch (IllegalAccessException e) {
+                return true;    // Can't tell, so play it safe
+            }
+        }
+        private static final Field ACCESS_ORDER = ClassSchema.getAccessOrderField();
+        private static Field getAccessOrderField()
+        {
+            try {
+                Field field = LinkedHashMap.class.getDeclaredField("accessOrder");
+                field.setAccessible(true);
+                return field;
+            } catch (Exception e) {
+                return null;
+            }
+        }
+        /**
+         * Does this class (or a superclass) control its own serialization?
+         */
+        public static boolean hasCustomSerialization(Class<?> type)
+        {
+            for (Class<?> c = type; c != null; c = c.getSuperclass())
+            {
+                if ((ClassSchema.hasMethod(c, "writeReplace")) || (ClassSchema.hasMethod(c, "readResolve")))
+                    return true;
+                if (!Serializable.class.isAssignableFrom(c))
+                    continue;
+                if ((ClassSchema.hasMethod(c, "writeObject", ObjectOutputStream.class))
+                    || (ClassSchema.hasMethod(c, "readObject", ObjectInputStream.class))
+                    || (ClassSchema.hasMethod(c, "readObjectNoData")))
+                    return true;
+                try {
+                    c.getDeclaredField("serialPersistentFields");
+                    return true;
+                } catch (NoSuchFieldException e) {
+                    // Good
+                }
+            }
+            return false;
+        }
+        private static boolean hasMethod(Class<?> c, String name, Class<?>... parameterTypes)
+        {
+            try {
+                c.getDeclaredMethod(name, parameterTypes);
+                return true;
+            } catch (NoSuchMethodException e) {
+                return false;
+            }
+        }
+        /**
+         * Get the serializable fields (the superclass fields first).
+         */
+        public static Field[] getSerializableFields(Class<?> type)
+        {
+            List<Class<?>> hierarchy = new ArrayList<Class<?>>();
+            for (Class<?> c = type; (c != null) && (Serializable.class.isAssignableFrom(c)); c = c.getSuperclass())
+            {
+                hierarchy.add(0, c);
+            }
+            List<Field> fields = new ArrayList<Field>();
+            for (Class<?> c : hierarchy)
+            {
+                for (Field field : c.getDeclaredFields())
+                {
+                    if ((field.getModifiers() & (Modifier.STATIC | Modifier.TRANSIENT)) != 0)
+                        continue;
+                    field.setAccessible(true);
+                    fields.add(field);
+                }
+            }
+            return fields.toArray(new Field[fields.size()]);
+        }
+        /**
+         * Get the type code for a field of this type (as in the jvm signature; L for any object).
+         */
+        public static byte getTypeCode(Class<?> type)
+        {
+            if (type == boolean.class)
+                return 'Z';
+            if (type == byte.class)
+                return 'B';
+            if (type == char.class)
+                return 'C';
+            if (type == short.class)
+                return 'S';
+            if (type == int.class)
+                return 'I';
+            if (type == long.class)
+                return 'J';
+            if (type == float.class)
+                return 'F';
+            if (type == double.class)
+                return 'D';
+            return 'L';
+        }
+        /**
+         * Get the primitive class for this name (or array type code).
+         */
+        public static Class<?> getPrimitiveClass(String name)
+        {
+            if (("boolean".equals(name)) || ("Z".equals(name)))
+                return boolean.class;
+            if (("byte".equals(name)) || ("B".equals(name)))
+                return byte.class;
+            if (("char".equals(name)) || ("C".equals(name)))
+                return char.class;
+            if (("short".equals(name)) || ("S".equals(name)))
+                return short.class;
+            if (("int".equals(name)) || ("I".equals(name)))
+                return int.class;
+            if (("long".equals(name)) || ("J".equals(name)))
+                return long.class;
+            if (("float".equals(name)) || ("F".equals(name)))
+                return float.class;
+            if (("double".equals(name)) || ("D".equals(name)))
+                return double.class;
+            return null;
+        }
+    }
+
+    /**
+     * Thrown (and caught by encode) when an object in the graph needs java serialization.
+     */
+    protected static class JavaSerializationRequired
+        extends IOException
+    {
+        private static final long serialVersionUID = 1L;
+
+        public JavaSerializationRequired(String className)
+        {
+            super(className);
+        }
+    }
+
+    /**
+     * A class definition read from the stream (the stream fields mapped to the local fields).
+     */
+    protected static class ClassDefinition
+    {
+        protected final ClassSchema schema;
+        protected final Class<?> type;
+        protected final byte[] typeCodes;
+        protected final Field[] fields;
+
+        public ClassDefinition(ClassSchema schema, String[] names, byte[] typeCodes)
+        {
+            this.schema = schema;
+            this.type = schema.type;
+            this.typeCodes = typeCodes;
+            this.fields = new Field[names.length];
+            for (int i = 0; i < names.length; i++)
+            {
+                fields[i] = schema.getField(names[i], typeCodes[i]);
+            }
+        }
+    }
+
+    /**
+     * Growable output buffer.
+     */
+    protected static class Output
+    {
+        protected byte[] buffer = new byte[256];
+        protected int count = 0;
+
+        private void ensureCapacity(int length)
+        {
+            if (count + length > buffer.length)
+            {
+                byte[] newBuffer = new byte[Math.max(buffer.length * 2, count + length)];
+                System.arraycopy(buffer, 0, newBuffer, 0, count);
+                buffer = newBuffer;
+            }
+        }
+        public void writeByte(int value)
+        {
+            this.ensureCapacity(1);
+            buffer[count++] = (byte)value;
+        }
+        public void writeBytes(byte[] data, int offset, int length)
+        {
+            this.ensureCapacity(length);
+            System.arraycopy(data, offset, buffer, count, length);
+            count += length;
+        }
+        public void writeInt(int value)
+        {
+            this.ensureCapacity(4);
+            buffer[count++] = (byte)(value >>> 24);
+            buffer[count++] = (byte)(value >>> 16);
+            buffer[count++] = (byte)(value >>> 8);
+            buffer[count++] = (byte)value;
+        }
+        public void writeLong(long value)
+        {
+            this.writeInt((int)(value >>> 32));
+            this.writeInt((int)value);
+        }
+        /**
+         * Unsigned variable length int (7 bits per byte).
+         */
+        public void writeVarInt(int value)
+        {
+            this.ensureCapacity(5);
+            while ((value & ~0x7F) != 0)
+            {
+                buffer[count++] = (byte)((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            buffer[count++] = (byte)value;
+        }
+        public void writeVarLong(long value)
+        {
+            this.ensureCapacity(10);
+            while ((value & ~0x7FL) != 0)
+            {
+                buffer[count++] = (byte)((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            buffer[count++] = (byte)value;
+        }
+        /**
+         * Signed variable length int (zig-zag, so small negative numbers are short too).
+         */
+        public void writeSignedInt(int value)
+        {
+            this.writeVarInt((value << 1) ^ (value >> 31));
+        }
+        public void writeSignedLong(long value)
+        {
+            this.writeVarLong((value << 1) ^ (value >> 63));
+        }
+        /**
+         * Write the char count, then the chars (one byte for ascii, up to three for the rest).
+         */
+        public void writeString(String string)
+        {
+            int length = string.length();
+            this.writeVarInt(length);
+            this.ensureCapacity(length * 3);
+            for (int i = 0; i < length; i++)
+            {
+                char chr = string.charAt(i);
+                if (chr < 0x80)
+                    buffer[count++] = (byte)chr;
+                else if (chr < 0x800)
+                {
+                    buffer[count++] = (byte)(0xC0 | (chr >> 6));
+                    buffer[count++] = (byte)(0x80 | (chr & 0x3F));
+                }
+                else
+                {
+                    buffer[count++] = (byte)(0xE0 | (chr >> 12));
+                    buffer[count++] = (byte)(0x80 | ((chr >> 6) & 0x3F));
+                    buffer[count++] = (byte)(0x80 | (chr & 0x3F));
+                }
+            }
+        }
+        public byte[] toByteArray()
+        {
+            byte[] data = new byte[count];
+            System.arraycopy(buffer, 0, data, 0, count);
+            return data;
+        }
+    }
+
+    /**
+     * Input buffer.
+     */
+    protected static class Input
+    {
+        protected final byte[] data;
+        protected int position;
+        protected final int limit;
+
+        public Input(byte[] data, int offset, int length)
+        {
+            this.data = data;
+            this.position = offset;
+            this.limit = offset + length;
+        }
+        public int readByte()
+            throws EOFException
+        {
+            if (position >= limit)
+                throw new EOFException();
+            return data[position++] & 0xFF;
+        }
+        /**
+         * Skip these bytes.
+         * @return The position of the first byte skipped.
+         */
+        public int skip(int length)
+            throws EOFException
+        {
+            if ((length < 0) || (position + length > limit))
+                throw new EOFException();
+            int offset = position;
+            position += length;
+            return offset;
+        }
+        public int readInt()
+            throws EOFException
+        {
+            int offset = this.skip(4);
+            return ((data[offset] & 0xFF) << 24) | ((data[offset + 1] & 0xFF) << 16) | ((data[offset + 2] & 0xFF) << 8) | (data[offset + 3] & 0xFF);
+        }
+        public long readLong()
+            throws EOFException
+        {
+            return (((long)this.readInt()) << 32) | (this.readInt() & 0xFFFFFFFFL);
+        }
+        public int readVarInt()
+            throws IOException
+        {
+            int value = 0;
+            for (int shift = 0; shift < 35; shift += 7)
+            {
+                int b = this.readByte();
+                value |= (b & 0x7F) << shift;
+                if ((b & 0x80) == 0)
+                    return value;
+            }
+            throw new StreamCorruptedException("Bad variable length int");
+        }
+        public long readVarLong()
+            throws IOException
+        {
+            long value = 0;
+            for (int shift = 0; shift < 70; shift += 7)
+            {
+                int b = this.readByte();
+                value |= ((long)(b & 0x7F)) << shift;
+                if ((b & 0x80) == 0)
+                    return value;
+            }
+            throw new StreamCorruptedException("Bad variable length long");
+        }
+        /**
+         * Read a count of items (each item is at least one byte, so it can't be more than the bytes left).
+         */
+        public int readLength()
+            throws IOException
+        {
+            int length = this.readVarInt();
+            if ((length < 0) || (length > limit - position))
+                throw new StreamCorruptedException("Bad length: " + length);
+            return length;
+        }
+        public int readSignedInt()
+            throws IOException
+        {
+            int value = this.readVarInt();
+            return (value >>> 1) ^ -(value & 1);
+        }
+        public long readSignedLong()
+            throws IOException
+        {
+            long value = this.readVarLong();
+            return (value >>> 1) ^ -(value & 1);
+        }
+        public String readString()
+            throws IOException
+        {
+            int length = this.readLength();
+            char[] chars = new char[length];
+            for (int i = 0; i < length; i++)
+            {
+                int b = this.readByte();
+                if (b < 0x80)
+                    chars[i] = (char)b;
+                else if ((b & 0xE0) == 0xC0)
+                    chars[i] = (char)(((b & 0x1F) << 6) | (this.readByte() & 0x3F));
+                else
+                {
+                    int b2 = this.readByte();
+                    chars[i] = (char)(((b & 0x0F) << 12) | ((b2 & 0x3F) << 6) | (this.readByte() & 0x3F));
+                }
+            }
+            return new String(chars);
+        }
+    }
+}
@@ -0,0 +1,67 @@
+/*
+ * Copyright © 2012 jbundle.org. All rights reserved.
+ */
+package org.jbundle.util.osgi.codec;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+
+/**
+ * JavaSerializationCodec - Standard java serialization.
+ * The data is a plain serialization stream (no codec header) so it can be read by the old code.
+ * @author don
+ *
+ */
+public class JavaSerializationCodec
+    implements ObjectCodec
+{
+    public static final byte CODEC_ID = 0;
+    public static final String NAME = "java";
+
+    public static final JavaSerializationCodec INSTANCE = new JavaSerializationCodec();
+
+    /**
+     * Constructor.
+     */
+    public JavaSerializationCodec()
+    {
+        super();
+    }
+    @Override
+    public byte getCodecId()
+    {
+        return CODEC_ID;
+    }
+    @Override
+    public String getName()
+    {
+        return NAME;
+    }
+    /**
+     * Encode this object (a plain serialization stream without a header).
+     */
+    @Override
+    public byte[] encode(Object object)
+        throws IOException
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ObjectOutputStream outStream = new ObjectOutputStream(out);
+        outStream.writeObject(object);
+        outStream.close();
+        return out.toByteArray();
+    }
+    @Override
+    public Object decode(byte[] data, int offset, int length, ClassResolver resolver)
+        throws IOException, ClassNotFoundException
+    {
+        ObjectInputStream inStream = new CodecObjectInputStream(new ByteArrayInputStream(data, offset, length), resolver);
+        try {
+            return inStream.readObject();
+        } finally {
+            inStream.close();
+        }
+    }
+}
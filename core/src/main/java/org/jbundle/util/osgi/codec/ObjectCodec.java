@@ -0,0 +1,46 @@
+/*
+ * Copyright © 2012 jbundle.org. All rights reserved.
+ */
+package org.jbundle.util.osgi.codec;
+
+import java.io.IOException;
+
+/**
+ * ObjectCodec - Encode an object graph to bytes and back.
+ * A codec's data starts with the {@link ObjectCodecs#CODEC_HEADER} byte and the codec id,
+ * so the decoder can tell which codec wrote it (plain java serialization streams have no header).
+ * Register a codec with {@link ObjectCodecs#register(ObjectCodec)}.
+ * @author don
+ *
+ */
+public interface ObjectCodec
+{
+    /**
+     * The id written after the codec header.
+     */
+    public byte getCodecId();
+    /**
+     * The name to select this codec by.
+     */
+    public String getName();
+    /**
+     * Encode this object.
+     * @param object The object to encode
+     * @return The data (starting with the codec header and id)
+     * @throws IOException If the object can't be encoded (ie., NotSerializableException)
+     */
+    public byte[] encode(Object object)
+        throws IOException;
+    /**
+     * Decode this data.
+     * @param data The data
+     * @param offset The start of the data (after the codec header and id)
+     * @param length The data length
+     * @param resolver Finds the classes that are not visible (null = use the default)
+     * @return The object
+     * @throws IOException If the data is corrupt
+     * @throws ClassNotFoundException If a class can't be found
+     */
+    public Object decode(byte[] data, int offset, int length, ClassResolver resolver)
+        throws IOException, ClassNotFoundException;
+}
@@ -0,0 +1,155 @@
+/*
+ * Copyright © 2012 jbundle.org. All rights reserved.
+ */
+package org.jbundle.util.osgi.codec;
+
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+
+import org.jbundle.util.osgi.ClassService;
+
+/**
+ * ObjectCodecs - The registered object codecs.
+ * Data that starts with the codec header is decoded by the codec with the id that follows it,
+ * anything else is decoded as a java serialization stream (which always starts with 0xACED),
+ * so the data written before the codecs existed still decodes.
+ * The default codec is java serialization (plain streams that older readers can still read);
+ * set the org.jbundle.util.osgi.codec system property to "compact" to write the compact codec
+ * (once every reader has the codecs).
+ * @author don
+ *
+ */
+public class ObjectCodecs
+{
+    /**
+     * First byte of the codec data.
+     */
+    public static final byte CODEC_HEADER = (byte)0xC5;
+    /**
+     * The (system) property with the default codec name.
+     */
+    public static final String CODEC_PARAM = "org.jbundle.util.osgi.codec";
+
+    protected static final ObjectCodec[] codecs = new ObjectCodec[256];
+
+    protected static volatile ObjectCodec defaultCodec = null;
+
+    static {
+        ObjectCodecs.register(JavaSerializationCodec.INSTANCE);
+        ObjectCodecs.register(CompactBinaryCodec.INSTANCE);
+        ObjectCodec codec = ObjectCodecs.getCodec(System.getProperty(CODEC_PARAM));
+        defaultCodec = (codec != null) ? codec : JavaSerializationCodec.INSTANCE;
+    }
+
+    /**
+     * Register this codec (replacing the codec with the same id).
+     */
+    public static void register(ObjectCodec codec)
+    {
+        synchronized (codecs)
+        {
+            codecs[codec.getCodecId() & 0xFF] = codec;
+        }
+    }
+    /**
+     * Get the codec with this id.
+     * @return The codec or null if there is no codec with this id.
+     */
+    public static ObjectCodec getCodec(byte codecId)
+    {
+        synchronized (codecs)
+        {
+            return codecs[codecId & 0xFF];
+        }
+    }
+    /**
+     * Get the codec with this name.
+     * @return The codec or null if there is no codec with this name.
+     */
+    public static ObjectCodec getCodec(String name)
+    {
+        if (name == null)
+            return null;
+        synchronized (codecs)
+        {
+            for (ObjectCodec codec : codecs)
+            {
+                if ((codec != null) && (name.equalsIgnoreCase(codec.getName())))
+                    return codec;
+            }
+        }
+        return null;
+    }
+    /**
+     * Get the codec used to encode objects.
+     */
+    public static ObjectCodec getDefaultCodec()
+    {
+        return defaultCodec;
+    }
+    /**
+     * Set the codec used to encode objects.
+     */
+    public static void setDefaultCodec(ObjectCodec codec)
+    {
+        if (codec != null)
+            defaultCodec = codec;
+    }
+    /**
+     * Encode this object with the default codec.
+     * @param object The object
+     * @return The data
+     * @throws IOException If the object can't be encoded
+     */
+    public static byte[] encode(Object object)
+        throws IOException
+    {
+        return defaultCodec.encode(object);
+    }
+    /**
+     * Decode this data with the codec that wrote it.
+     * @param data The data
+     * @param resolver Finds the classes that are not visible (null = use the default)
+     * @return The object
+     * @throws IOException If the data is corrupt
+     * @throws ClassNotFoundException If a class can't be found
+     */
+    public static Object decode(byte[] data, ClassResolver resolver)
+        throws IOException, ClassNotFoundException
+    {
+        if ((data.length >= 2) && (data[0] == CODEC_HEADER))
+        {
+            ObjectCodec codec = ObjectCodecs.getCodec(data[1]);
+            if (codec == null)
+                throw new StreamCorruptedException("Unknown codec: " + (data[1] & 0xFF));
+            return codec.decode(data, 2, data.length - 2, resolver);
+        }
+        return JavaSerializationCodec.INSTANCE.decode(data, 0, data.length, resolver);  // Plain java serialization
+    }
+    /**
+     * Encode this object to a string (with the default codec).
+     * @param object The object
+     * @return The string (one char per byte)
+     * @throws IOException If the object can't be encoded
+     */
+    public static String encodeToString(Object object)
+        throws IOException
+    {
+        return new String(ObjectCodecs.encode(object), ClassService.OBJECT_ENCODING);
+    }
+    /**
+     * Decode this string.
+     * @param string The string (one char per byte)
+     * @param resolver Finds the classes that are not visible (null = use the default)
+     * @return The object or null if the string is empty
+     * @throws IOException If the data is corrupt
+     * @throws ClassNotFoundException If a class can't be found
+     */
+    public static Object decodeString(String string, ClassResolver resolver)
+        throws IOException, ClassNotFoundException
+    {
+        if ((string == null) || (string.length() == 0))
+            return null;
+        return ObjectCodecs.decode(string.getBytes(ClassService.OBJECT_ENCODING), resolver);
+    }
+}
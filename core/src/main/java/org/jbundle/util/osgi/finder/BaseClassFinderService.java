@@ -3,33 +3,41 @@
  */
 package org.jbundle.util.osgi.finder;
 
-import java.io.ByteArrayInputStream;
-import java.io.File;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.ObjectInputStream;
 import java.net.URL;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Dictionary;
-import java.util.Enumeration;
-import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Locale;
 import java.util.Map;
-import java.util.PropertyResourceBundle;
+import java.util.Queue;
 import java.util.ResourceBundle;
-import java.util.StringTokenizer;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import org.jbundle.util.osgi.BundleService;
 import org.jbundle.util.osgi.ClassFinder;
 import org.jbundle.util.osgi.ClassService;
+import org.jbundle.util.osgi.codec.ClassResolutionCache;
+import org.jbundle.util.osgi.codec.ObjectCodecs;
 import org.osgi.framework.Bundle;
 import org.osgi.framework.BundleActivator;
 import org.osgi.framework.BundleContext;
+import org.osgi.framework.BundleEvent;
 import org.osgi.framework.BundleException;
-import org.osgi.framework.Constants;
-import org.osgi.framework.InvalidSyntaxException;
+import org.osgi.framework.FrameworkUtil;
 import org.osgi.framework.ServiceReference;
+import org.osgi.framework.SynchronousBundleListener;
 import org.osgi.framework.Version;
 import org.osgi.service.log.LogService;
 
@@ -40,15 +48,94 @@ import org.osgi.service.log.LogService;
  * 
  */
 public abstract class BaseClassFinderService extends Object
-	implements BundleActivator, ClassFinder
+	implements BundleActivator, ClassFinder, SynchronousBundleListener
 {
     public static final String FAKE_CLASSNAME = ".FakeClass";
 
+    /**
+     * Negative lookup cache properties (time to live in ms and maximum entries).
+     */
+    public static final String MISS_CACHE_TTL_PARAM = "jbundle.finder.miss.ttl";
+    public static final String MISS_CACHE_SIZE_PARAM = "jbundle.finder.miss.size";
+    public static final long DEFAULT_MISS_CACHE_TTL = 30 * 1000;
+    public static final int DEFAULT_MISS_CACHE_SIZE = 10000;
+    /**
+     * Repository resource cache property (maximum entries).
+     */
+    public static final String RESOURCE_CACHE_SIZE_PARAM = "jbundle.finder.resource.size";
+    public static final int DEFAULT_RESOURCE_CACHE_SIZE = 2000;
+    /**
+     * Resource bundle cache property (maximum (base name, locale) entries).
+     */
+    public static final String RESOURCE_BUNDLE_CACHE_SIZE_PARAM = "jbundle.finder.resourcebundle.size";
+    public static final int DEFAULT_RESOURCE_BUNDLE_CACHE_SIZE = 1000;
+    /**
+     * Resource content cache properties (maximum total bytes and largest entry to cache).
+     */
+    public static final String CONTENT_CACHE_SIZE_PARAM = "jbundle.finder.content.size";
+    public static final String CONTENT_ENTRY_SIZE_PARAM = "jbundle.finder.content.entry.size";
+    public static final long DEFAULT_CONTENT_CACHE_SIZE = 64 * 1024 * 1024;
+    public static final int DEFAULT_CONTENT_ENTRY_SIZE = 1024 * 1024;
+    /**
+     * Number of threads for the asynchronous lookups.
+     */
+    public static final String ASYNC_THREADS_PARAM = "jbundle.finder.async.threads";
+    public static final int DEFAULT_ASYNC_THREADS = 4;
+    /**
+     * Number of threads to index the bundle class entries with.
+     */
+    public static final String CLASS_INDEX_THREADS_PARAM = "jbundle.finder.classindex.threads";
+    /**
+     * How often to save the index snapshot in ms (0 = only when I stop).
+     */
+    public static final String SNAPSHOT_INTERVAL_PARAM = "jbundle.finder.snapshot.interval";
+    public static final long DEFAULT_SNAPSHOT_INTERVAL = 5 * 60 * 1000;
+    /**
+     * Lookup types for the cache keys.
+     */
+    public static final String CLASS_TYPE = "class";
+    public static final String RESOURCE_TYPE = "resource";
+    public static final String RESOURCE_BUNDLE_TYPE = "resourceBundle";
+    public static final String CLASS_LOADER_TYPE = "classLoader";
+
     /**
 	 * Good from start to stop.
 	 */
     protected BundleContext bundleContext = null;
 
+    /**
+     * Names that were not found (so I don't have to go to the repository each time).
+     */
+    protected BoundedCache<CacheKey, Boolean> missCache = new BoundedCache<CacheKey, Boolean>(DEFAULT_MISS_CACHE_SIZE, DEFAULT_MISS_CACHE_TTL);
+    /**
+     * Classes that were found (so I don't have to go to the service registry each time).
+     */
+    protected ClassCache classCache = new ClassCache();
+    /**
+     * Bundle class loaders (by bundle revision).
+     */
+    protected BundleClassLoaderCache classLoaderCache = new BundleClassLoaderCache();
+    /**
+     * The class entries in the installed bundles (null until I start).
+     */
+    protected ClassEntryIndex classEntryIndex = null;
+    /**
+     * Saves the class entry index for the next restart (null if there is no data area).
+     */
+    protected FinderSnapshot snapshot = null;
+    /**
+     * Resource contents (off-heap).
+     */
+    protected DirectBufferCache contentCache = new DirectBufferCache(DEFAULT_CONTENT_CACHE_SIZE, DEFAULT_CONTENT_ENTRY_SIZE);
+    /**
+     * Loads (and caches) the resource bundles.
+     */
+    protected ResourceBundleLoader resourceBundleLoader = new ResourceBundleLoader(DEFAULT_RESOURCE_BUNDLE_CACHE_SIZE);
+    /**
+     * Runs the asynchronous lookups (created when it is first needed).
+     */
+    protected ExecutorService asyncExecutor = null;
+
     /**
      * Service to find resources by class name.
      * Singleton.
@@ -69,7 +156,25 @@ public abstract class BaseClassFinderService extends Object
         bundleContext = context;
 
         if (context != null)
+        {
+            missCache = new BoundedCache<CacheKey, Boolean>(getIntProperty(context, MISS_CACHE_SIZE_PARAM, DEFAULT_MISS_CACHE_SIZE), getLongProperty(context, MISS_CACHE_TTL_PARAM, DEFAULT_MISS_CACHE_TTL));
+            resourceCache = new BoundedCache<String,Object>(getIntProperty(context, RESOURCE_CACHE_SIZE_PARAM, DEFAULT_RESOURCE_CACHE_SIZE), 0);
+            contentCache = new DirectBufferCache(getLongProperty(context, CONTENT_CACHE_SIZE_PARAM, DEFAULT_CONTENT_CACHE_SIZE), getIntProperty(context, CONTENT_ENTRY_SIZE_PARAM, DEFAULT_CONTENT_ENTRY_SIZE));
+            resourceBundleLoader = new ResourceBundleLoader(getIntProperty(context, RESOURCE_BUNDLE_CACHE_SIZE_PARAM, DEFAULT_RESOURCE_BUNDLE_CACHE_SIZE));
+            ClassServiceUtility.setResourceURLCacheSize(getIntProperty(context, ClassServiceUtility.RESOURCE_URL_CACHE_SIZE_PARAM, ClassServiceUtility.DEFAULT_RESOURCE_URL_CACHE_SIZE), getLongProperty(context, ClassServiceUtility.RESOURCE_URL_MISS_TTL_PARAM, ClassServiceUtility.DEFAULT_RESOURCE_URL_MISS_TTL));
+            classEntryIndex = new ClassEntryIndex(context, getIntProperty(context, CLASS_INDEX_THREADS_PARAM, DEFAULT_ASYNC_THREADS));   // Built when it is first used
+            snapshot = FinderSnapshot.getSnapshot(context, classEntryIndex);
+            if (snapshot != null)
+            {
+                int bundles = snapshot.load(context);
+                this.log(context, LogService.LOG_INFO, "Restored the class index for " + bundles + " bundles");
+                snapshot.schedule(getLongProperty(context, SNAPSHOT_INTERVAL_PARAM, DEFAULT_SNAPSHOT_INTERVAL));
+            }
+            context.addBundleListener(this);
+            ExportPackageIndex.getIndex(context);   // Build the package index before the first lookup
+            BundleServiceIndex.getIndex(context);   // Start tracking the bundle services
             context.registerService(ClassFinder.class.getName(), this, null);	// Should be only one of these
+        }
     }
     /**
      * Bundle shutting down.
@@ -77,9 +182,148 @@ public abstract class BaseClassFinderService extends Object
     public void stop(BundleContext context) throws Exception {
         this.log(context, LogService.LOG_INFO, "Stopping the " + this.getClass().getName() + " ClassService bundle");
         // I'm unregistered automatically
+        if (context != null)
+        {
+            context.removeBundleListener(this);
+            ExportPackageIndex.closeIndex(context); // The index listens on the system bundle, so it would outlive me
+            BundleServiceIndex.closeIndex(context); // Same for the service tracker
+            StartupTracker.closeTracker(context);
+        }
+        this.invalidateMissCache();
+        classCache.clear();
+        classLoaderCache.clear();
+        resourceCache.clear();
+        resourceBundleLoader.clear();
+        contentCache.clear();
+        if (snapshot != null)
+            snapshot.close();   // Save the index before I clear it
+        snapshot = null;
+        if (classEntryIndex != null)
+            classEntryIndex.close();
+        classEntryIndex = null;
+        synchronized (this)
+        {
+            if (asyncExecutor != null)
+                asyncExecutor.shutdown();
+            asyncExecutor = null;
+        }
 
         bundleContext = null;
     }
+    /**
+     * A bundle changed, clear the cached information that is no longer valid.
+     */
+    @Override
+    public void bundleChanged(BundleEvent event)
+    {
+        switch (event.getType())
+        {
+        case BundleEvent.INSTALLED:
+        case BundleEvent.RESOLVED:
+        case BundleEvent.STARTED:
+        case BundleEvent.UPDATED:
+            this.invalidateMissCache();    // Something that was missing may be here now
+            ClassServiceUtility.clearResourceURLCache();
+            if ((classEntryIndex != null) && ((event.getType() == BundleEvent.INSTALLED) || (event.getType() == BundleEvent.UPDATED)))
+                classEntryIndex.addBundle(event.getBundle());
+            if (event.getType() == BundleEvent.UPDATED)
+            {
+                classCache.removeBundle(event.getBundle().getBundleId());
+                classLoaderCache.removeBundle(event.getBundle().getBundleId());
+                this.removeResourcesFromCache(event.getBundle());
+                resourceBundleLoader.removeBundle(event.getBundle().getBundleId());
+                contentCache.removeBundle(event.getBundle().getBundleId());
+                ClassResolutionCache.clearAll();
+            }
+            break;
+        case BundleEvent.UNRESOLVED:
+            classCache.removeBundle(event.getBundle().getBundleId());   // The class loader is going away
+            classLoaderCache.removeBundle(event.getBundle().getBundleId());
+            ClassServiceUtility.clearResourceURLCache();
+            ClassResolutionCache.clearAll();
+            break;
+        case BundleEvent.UNINSTALLED:
+            classCache.removeBundle(event.getBundle().getBundleId());
+            classLoaderCache.removeBundle(event.getBundle().getBundleId());
+            this.removeResourcesFromCache(event.getBundle());
+            resourceBundleLoader.removeBundle(event.getBundle().getBundleId());
+            contentCache.removeBundle(event.getBundle().getBundleId());
+            if (classEntryIndex != null)
+                classEntryIndex.removeBundle(event.getBundle().getBundleId());
+            ClassServiceUtility.clearResourceURLCache();
+            ClassResolutionCache.clearAll();
+            break;
+        default:
+            break;
+        }
+    }
+    /**
+     * Clear the negative lookup cache.
+     * Call this when something new (a bundle or repository) becomes available.
+     */
+    public void invalidateMissCache()
+    {
+        missCache.clear();
+    }
+    /**
+     * Is this name in the negative lookup cache?
+     */
+    protected boolean isCachedMiss(String type, String name, String versionRange)
+    {
+        return (missCache.get(new CacheKey(type, name, versionRange)) != null);
+    }
+    /**
+     * Add this name to the negative lookup cache.
+     */
+    protected void addCachedMiss(String type, String name, String versionRange)
+    {
+        missCache.put(new CacheKey(type, name, versionRange), Boolean.TRUE);
+    }
+    /**
+     * Get the cache counters.
+     * Override this to add your caches.
+     * @return The cache name to counters map.
+     */
+    public Map<String, CacheStats> getCacheStats()
+    {
+        Map<String, CacheStats> stats = new LinkedHashMap<String, CacheStats>();
+        stats.put("miss", missCache.getStats());
+        stats.put("class", classCache.getStats());
+        stats.put("classLoader", classLoaderCache.getStats());
+        stats.put("filter", FilterCache.getStats());
+        stats.put("resource", resourceCache.getStats());
+        stats.put("resourceBundle", resourceBundleLoader.getStats());
+        stats.put("resourceURL", ClassServiceUtility.getResourceURLCacheStats());
+        stats.put("resourceURLMiss", ClassServiceUtility.getResourceURLMissCacheStats());
+        stats.put("content", contentCache.getStats());
+        if (classEntryIndex != null)
+            stats.put("classIndex", classEntryIndex.getStats());
+        stats.put("deserialization", ClassResolutionCache.getStats());
+        return stats;
+    }
+    /**
+     * Get this integer framework property.
+     */
+    public static int getIntProperty(BundleContext context, String key, int defaultValue)
+    {
+        return (int)getLongProperty(context, key, defaultValue);
+    }
+    /**
+     * Get this long framework property.
+     */
+    public static long getLongProperty(BundleContext context, String key, long defaultValue)
+    {
+        String value = (context != null) ? context.getProperty(key) : null;
+        if ((value != null) && (value.length() > 0))
+        {
+            try {
+                return Long.parseLong(value.trim());
+            } catch (NumberFormatException e) {
+                // Use the default
+            }
+        }
+        return defaultValue;
+    }
     /**
      * Find, resolve, and return this class definition.
      * @param className
@@ -89,8 +333,13 @@ public abstract class BaseClassFinderService extends Object
     {
         //if (ClassServiceBootstrap.repositoryAdmin == null)
         //    return null;
+        Class<?> c = classCache.get(className, versionRange);
+        if (c != null)
+            return c;
+        if (this.isCachedMiss(CLASS_TYPE, className, versionRange))
+            return null;
 
-        Class<?> c = this.getClassFromBundle(null, className, versionRange);
+        c = this.getClassFromBundle(null, className, versionRange);
 
         if (c == null) {
             Object resource = this.deployThisResource(ClassFinderActivator.getPackageName(className, false), versionRange, false);
@@ -101,9 +350,125 @@ public abstract class BaseClassFinderService extends Object
             		c = this.getClassFromBundle(resource, className, versionRange);
             }
         }
+        if (c == null)
+            c = this.getClassFromInstalledBundle(className, versionRange);   // Private package
+        if (c == null)
+            this.addCachedMiss(CLASS_TYPE, className, versionRange);
+        else
+            classCache.put(className, versionRange, c);
 
         return c;
     }
+    /**
+     * Find, resolve, and return these class definitions.
+     * The names are grouped by package so each package does one service lookup and at most one deploy.
+     * The packages are loaded in parallel on the async executor (the calling thread works too,
+     * so this never waits on a package that no thread has picked up).
+     * @param classNames The class names
+     * @return The class definitions by class name (the classes that were not found are not in the map).
+     */
+    public Map<String, Class<?>> findClasses(Collection<String> classNames, String versionRange)
+    {
+        final Map<String, Class<?>> classes = new ConcurrentHashMap<String, Class<?>>();
+        Map<String, List<String>> packages = new LinkedHashMap<String, List<String>>();
+        for (String className : classNames)
+        {
+            Class<?> c = classCache.get(className, versionRange);
+            if (c != null)
+                classes.put(className, c);
+            else if (!this.isCachedMiss(CLASS_TYPE, className, versionRange))
+            {
+                String packageName = ClassFinderActivator.getPackageName(className, false);
+                List<String> names = packages.get(packageName);
+                if (names == null)
+                    packages.put(packageName, names = new ArrayList<String>());
+                names.add(className);
+            }
+        }
+        if (packages.size() > 0)
+        {
+            final String range = versionRange;
+            final Queue<Map.Entry<String, List<String>>> queue = new ConcurrentLinkedQueue<Map.Entry<String, List<String>>>(packages.entrySet());
+            final CountDownLatch done = new CountDownLatch(packages.size());
+            Runnable worker = new Runnable() {
+                public void run()
+                {
+                    Map.Entry<String, List<String>> entry = null;
+                    while ((entry = queue.poll()) != null)
+                    {
+                        try {
+                            findPackageClasses(entry.getKey(), entry.getValue(), range, classes);
+                        } catch (Exception e) {
+                            e.printStackTrace();
+                        } finally {
+                            done.countDown();
+                        }
+                    }
+                }
+            };
+            int workers = Math.min(packages.size(), getIntProperty(bundleContext, ASYNC_THREADS_PARAM, DEFAULT_ASYNC_THREADS)) - 1;
+            for (int i = 0; i < workers; i++)
+            {
+                this.getAsyncExecutor().execute(worker);
+            }
+            worker.run();
+            try {
+                done.await();   // The packages that are left are being loaded by the workers
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        Map<String, Class<?>> results = new LinkedHashMap<String, Class<?>>();
+        for (String className : classNames)
+        {   // Same order as the names
+            Class<?> c = classes.get(className);
+            if (c != null)
+                results.put(className, c);
+        }
+        return results;
+    }
+    /**
+     * Find, resolve, and load these classes from the same package.
+     * @param packageName The package
+     * @param classNames The class names in this package
+     * @param classes The map to add the classes to
+     */
+    protected void findPackageClasses(String packageName, List<String> classNames, String versionRange, Map<String, Class<?>> classes)
+    {
+        BundleService classAccess = this.getClassBundleService(packageName + FAKE_CLASSNAME, versionRange, null, 0);
+        Bundle bundle = null;
+        if (classAccess == null)
+        {
+            Object resource = this.deployThisResource(packageName, versionRange, false);
+            if (resource != null)
+            {
+                classAccess = this.getClassBundleService(packageName + FAKE_CLASSNAME, versionRange, null, 0);    // It is possible that the newly started bundle registered itself
+                if (classAccess == null)
+                    bundle = this.findBundle(resource, bundleContext, packageName, versionRange);
+            }
+        }
+        if ((classAccess == null) && (bundle == null))
+            bundle = this.getInstalledBundle(classNames.get(0), versionRange);   // Private package
+        for (String className : classNames)
+        {
+            Class<?> c = null;
+            try {
+                if (classAccess != null)
+                    c = classAccess.makeClass(className);
+                else if (bundle != null)
+                    c = bundle.loadClass(className);
+            } catch (ClassNotFoundException e) {
+                c = null;
+            }
+            if (c == null)
+                this.addCachedMiss(CLASS_TYPE, className, versionRange);
+            else
+            {
+                classCache.put(className, versionRange, c);
+                classes.put(className, c);
+            }
+        }
+    }
     /**
      * Find, resolve, and return this resource's URL.
      * @param className
@@ -114,6 +479,9 @@ public abstract class BaseClassFinderService extends Object
         //if (ClassServiceBootstrap.repositoryAdmin == null)
         //    return null;
 
+        if (this.isCachedMiss(RESOURCE_TYPE, className, versionRange))
+            return null;
+
         URL url = this.getResourceFromBundle(null, className, versionRange);
 
         if (url == null) {
@@ -121,9 +489,58 @@ public abstract class BaseClassFinderService extends Object
             if (resource != null)
             	url = this.getResourceFromBundle(resource, className, versionRange);
         }
+        if (url == null)
+            this.addCachedMiss(RESOURCE_TYPE, className, versionRange);
 
         return url;
     }
+    /**
+     * Find, resolve, and return this resource's contents.
+     * The contents are cached in direct buffers (by the revision of the bundle the URL came from and path),
+     * so a hot resource is not read or copied again.
+     * @param name The resource path
+     * @return A read-only view of the contents or null if not found.
+     */
+    public ByteBuffer findResourceBytes(String name, String versionRange)
+    {
+        if (name == null)
+            return null;
+        URL url = this.findResourceURL(name, versionRange);
+        if (url == null)
+            return null;
+        Bundle bundle = this.getURLBundle(url);     // The package's exporter may not be the bundle that has the resource
+        try {
+            if (bundle == null)
+                return DirectBufferCache.read(url, 0).asReadOnlyBuffer();  // Can't key it, so don't cache it
+            ByteBuffer buffer = contentCache.get(bundle.getBundleId(), bundle.getLastModified(), name);
+            if (buffer != null)
+                return buffer;
+            return contentCache.load(bundle.getBundleId(), bundle.getLastModified(), name, url);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        return null;
+    }
+    /**
+     * Get the bundle that this resource URL came from.
+     * Felix (bundle://id.revision:index/path) and Equinox (bundleresource://id.fwk:index/path)
+     * both start the host with the bundle id.
+     * @param url The resource URL
+     * @return The bundle or null if this isn't an entry in a bundle.
+     */
+    protected Bundle getURLBundle(URL url)
+    {
+        String host = url.getHost();
+        int end = 0;
+        while ((end < host.length()) && (Character.isDigit(host.charAt(end))))
+            end++;
+        if ((end == 0) || (end > 18) || (bundleContext == null))
+            return null;
+        Bundle bundle = bundleContext.getBundle(Long.parseLong(host.substring(0, end)));
+        if ((bundle == null) || (bundle.getEntry(url.getPath()) == null))
+            return null;    // Not this bundle's entry (ie., an embedded jar or fragment)
+        return bundle;
+    }
     /**
      * Find, resolve, and return this ResourceBundle.
      * @param className
@@ -135,6 +552,10 @@ public abstract class BaseClassFinderService extends Object
         //if (ClassServiceBootstrap.repositoryAdmin == null)
         //    return null;
 
+        String missName = (locale == null) ? className : className + '_' + locale;    // A miss is for this locale
+        if (this.isCachedMiss(RESOURCE_BUNDLE_TYPE, missName, versionRange))
+            return null;
+
         ResourceBundle resourceBundle = this.getResourceBundleFromBundle(null, className, locale, versionRange);
 
         if (resourceBundle == null) {
@@ -160,9 +581,95 @@ public abstract class BaseClassFinderService extends Object
             	}
             }
         }
+        if (resourceBundle == null)
+            this.addCachedMiss(RESOURCE_BUNDLE_TYPE, missName, versionRange);
 
         return resourceBundle;
     }
+    /**
+     * Find, resolve, and return this class definition (without blocking).
+     * @param className
+     * @return A future that completes with the class definition or null if not found.
+     */
+    public CompletableFuture<Class<?>> findClassAsync(final String className, final String versionRange)
+    {
+        Class<?> c = classCache.get(className, versionRange);
+        if (c != null)
+            return CompletableFuture.<Class<?>>completedFuture(c);
+        return CompletableFuture.supplyAsync(() -> findClass(className, versionRange), this.getAsyncExecutor());
+    }
+    /**
+     * Find, resolve, and return this resource's URL (without blocking).
+     * @param className
+     * @return A future that completes with the URL or null if not found.
+     */
+    public CompletableFuture<URL> findResourceURLAsync(final String className, final String versionRange)
+    {
+        return CompletableFuture.supplyAsync(() -> findResourceURL(className, versionRange), this.getAsyncExecutor());
+    }
+    /**
+     * Find, resolve, and return this ResourceBundle (without blocking).
+     * @param className
+     * @return A future that completes with the resource bundle or null if not found.
+     */
+    public CompletableFuture<ResourceBundle> findResourceBundleAsync(final String className, final Locale locale, final String versionRange)
+    {
+        return CompletableFuture.supplyAsync(() -> findResourceBundle(className, locale, versionRange), this.getAsyncExecutor());
+    }
+    /**
+     * Find this resource in the repository, then deploy and optionally start it (without blocking).
+     * @param packageName
+     * @return A future that completes with the resource or null if not found.
+     */
+    public CompletableFuture<Object> deployThisResourceAsync(final String packageName, final String versionRange, final boolean start)
+    {
+        return CompletableFuture.supplyAsync(() -> deployThisResource(packageName, versionRange, start), this.getAsyncExecutor());
+    }
+    /**
+     * Find this class's registered class access service (without blocking).
+     * If the service is not up, its bundle is found (or deployed) and started, then the future
+     * completes when the framework reports that the service is registered and its bundle is active.
+     * No thread waits for the service.
+     * @param className
+     * @param secsToWait Time to wait for service to start (0=don't wait, -1=default)
+     * @return A future that completes with the service or null if it did not start in time.
+     */
+    @SuppressWarnings("rawtypes")
+    public CompletableFuture<BundleService> getClassBundleServiceAsync(final String className, final String versionRange, Dictionary<String, String> filter, final int secsToWait)
+    {
+        BundleService bundleService = this.getClassBundleService(className, versionRange, filter, 0);
+        final BundleContext context = bundleContext;
+        if ((bundleService != null) || (secsToWait == 0) || (context == null))
+            return CompletableFuture.completedFuture(bundleService);
+
+        final StartupTracker tracker = StartupTracker.getTracker(context);
+        CompletableFuture<ServiceReference> registered = StartupTracker.timeout(tracker.whenServiceRegistered(className, versionRange, filter), secsToWait);
+        CompletableFuture<BundleService> future = registered.thenCompose(
+            ref -> StartupTracker.timeout(tracker.whenBundleStarted(ref.getBundle()), secsToWait).thenApply(bundle -> (BundleService)context.getService(ref)));
+        if (!registered.isDone())
+            this.getAsyncExecutor().execute(() -> ClassFinderActivator.startServiceBundle(context, className, versionRange, 0));
+        return future.exceptionally(ex -> null);    // Timed out
+    }
+    /**
+     * Get the executor for the asynchronous lookups.
+     */
+    protected synchronized ExecutorService getAsyncExecutor()
+    {
+        if (asyncExecutor == null)
+        {
+            int threads = getIntProperty(bundleContext, ASYNC_THREADS_PARAM, DEFAULT_ASYNC_THREADS);
+            asyncExecutor = Executors.newFixedThreadPool(Math.max(1, threads), new ThreadFactory() {
+                int count = 0;
+                public Thread newThread(Runnable runnable)
+                {
+                    Thread thread = new Thread(runnable, "ClassFinder async " + (++count));
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return asyncExecutor;
+    }
     /**
      * Convert this encoded string back to a Java Object.
      * @param string The string to convert.
@@ -215,7 +722,6 @@ public abstract class BaseClassFinderService extends Object
     }
     /**
      * Convert this encoded string back to a Java Object.
-     * TODO This is expensive, I need to synchronize and use a static writer.
      * @param string The string to convert.
      * @return The java object.
      * @throws ClassNotFoundException 
@@ -226,12 +732,7 @@ public abstract class BaseClassFinderService extends Object
         if ((string == null) || (string.length() == 0))
             return null;
         try {
-            InputStream reader = new ByteArrayInputStream(string.getBytes(ClassService.OBJECT_ENCODING));//Constants.STRING_ENCODING));
-            ObjectInputStream inStream = new ObjectInputStream(reader);
-            Object obj = inStream.readObject();
-            reader.close();
-            inStream.close();
-            return obj;
+            return ObjectCodecs.decodeString(string, null);
         } catch (IOException ex)    {
             ex.printStackTrace();   // Never
         }
@@ -245,6 +746,9 @@ public abstract class BaseClassFinderService extends Object
      */
     public ClassLoader findBundleClassLoader(String packageName, String versionRange)
     {
+        if (this.isCachedMiss(CLASS_LOADER_TYPE, packageName, versionRange))
+            return null;
+
     	ClassLoader classLoader = this.getClassLoaderFromBundle(null, packageName, versionRange);
 
         if (classLoader == null) {
@@ -252,6 +756,8 @@ public abstract class BaseClassFinderService extends Object
             if (resource != null)
             	classLoader = this.getClassLoaderFromBundle(resource, packageName, versionRange);
         }
+        if (classLoader == null)
+            this.addCachedMiss(CLASS_LOADER_TYPE, packageName, versionRange);
 
         return classLoader;    	
     }
@@ -263,38 +769,22 @@ public abstract class BaseClassFinderService extends Object
      */
     private ClassLoader getClassLoaderFromBundle(Object resource, String packageName, String versionRange)
     {
-    	String className = packageName + FAKE_CLASSNAME;
-    	ClassLoader classLoader = null;
+        Bundle bundle = null;
         if (resource == null)
         {
-            BundleService classAccess = this.getClassBundleService(className, versionRange, null, 0);
-            if (classAccess != null)
-            {
-            	classLoader = classAccess.getClass().getClassLoader();
+            bundle = BaseClassFinderService.findBundle(bundleContext, packageName, versionRange);
+            if (bundle == null)
+            {   // Not exported, see if a bundle service has it
+                BundleService classAccess = this.getClassBundleService(packageName + FAKE_CLASSNAME, versionRange, null, 0);
+                if (classAccess != null)
+                    return classAccess.getClass().getClassLoader();
             }
         }
         else
-        {
-        	Bundle bundle = this.findBundle(resource, bundleContext, ClassFinderActivator.getPackageName(className, false), versionRange);
-        	if (bundle == null)
-        		return null;
-        	@SuppressWarnings("unchecked")
-			Enumeration<URL> entries = bundle.findEntries(packageName.replace('.', '/'), "*.class", true);
-        	if (entries != null)
-        		if (entries.hasMoreElements())
-        	{	// This is kind of a hokey way to get the classloader from a bundle - find a class file and load it - but it works.
-        		URL url = entries.nextElement();
-        		String path = url.getFile();
-        		int start = path.startsWith("/") ? 1 : 0;	// Path should always start at the root.
-        		path = path.substring(start, path.lastIndexOf('.')).replace('/', '.');
-        		try {
-					classLoader = bundle.loadClass(path).getClassLoader();
-				} catch (ClassNotFoundException e) {
-					e.printStackTrace();
-				}
-        	}
-        }
-        return classLoader;
+            bundle = this.findBundle(resource, bundleContext, packageName, versionRange);
+        if (bundle == null)
+            return null;
+        return classLoaderCache.getClassLoader(bundle, packageName);
     }
     /**
      * Find this class's class access registered class access service in the current workspace.
@@ -320,35 +810,45 @@ public abstract class BaseClassFinderService extends Object
      */
     public static ServiceReference getClassServiceReference(BundleContext context, String className, String versionRange, Dictionary<String, String> filter)
     {
+        BundleServiceIndex index = BundleServiceIndex.getIndex(context);
+        if (index == null)
+            return null;
+        String interfaceName = null;
+        if (filter != null)
+            interfaceName = filter.get(BundleService.INTERFACE);
+        if (interfaceName == null)
+            interfaceName = className;
+        if (interfaceName == null)
+            interfaceName = BundleService.class.getName();  // Never
+        return index.getServiceReference(interfaceName, ClassFinderActivator.getPackageName(className, true), filter, versionRange);
+    }
+    /**
+     * Load this class from the installed bundle that has it (using the class entry index).
+     * @return The class or null if no installed bundle has it.
+     */
+    protected Class<?> getClassFromInstalledBundle(String className, String versionRange)
+    {
+        Bundle bundle = this.getInstalledBundle(className, versionRange);
+        if (bundle == null)
+            return null;
         try {
-            String serviceFilter = ClassServiceUtility.addToFilter(null, BundleService.PACKAGE_NAME, ClassFinderActivator.getPackageName(className, true));
-            String interfaceName = null;
-            if (filter != null)
-            {
-                interfaceName = filter.get(BundleService.INTERFACE);
-
-                Enumeration<String> keys = filter.keys();
-                while (keys.hasMoreElements())
-                {
-                    String key = keys.nextElement();
-                    if (key.equals(BundleService.INTERFACE))
-                        continue;
-                    serviceFilter = ClassServiceUtility.addToFilter(serviceFilter, key, filter.get(key));
-                }
-            }
-            if (interfaceName == null)
-                interfaceName = className;
-            if (interfaceName == null)
-                interfaceName = BundleService.class.getName();  // Never
-            serviceFilter = ClassFinderActivator.addVersionFilter(serviceFilter, versionRange);
-            ServiceReference[] refs = context.getServiceReferences(interfaceName, serviceFilter);
-
-            if ((refs != null) && (refs.length > 0))
-                return refs[0];
-        } catch (InvalidSyntaxException e) {
-            e.printStackTrace();
+            return bundle.loadClass(className);
+        } catch (ClassNotFoundException e) {
+            return null;    // Not resolvable
         }
-        return null;
+    }
+    /**
+     * Find the installed bundle that has this class in a package that no bundle exports (using the class entry index).
+     * A class in an exported package comes from the exporter, never from a private or embedded copy.
+     * @return The bundle or null if not found (or the package is exported).
+     */
+    protected Bundle getInstalledBundle(String className, String versionRange)
+    {
+        if (classEntryIndex == null)
+            return null;
+        if (BaseClassFinderService.findBundle(bundleContext, ClassFinderActivator.getPackageName(className, false), null) != null)
+            return null;    // Exported (use the exporter)
+        return classEntryIndex.findBundle(className, versionRange);
     }
     /**
      * Find this class's bundle in the repository
@@ -407,6 +907,7 @@ public abstract class BaseClassFinderService extends Object
     }
     /**
      * Get the Resource Bundle from the Bundle
+     * The properties files for each candidate locale are linked as parents (and cached).
      * 
      * @param className
      * @return
@@ -422,13 +923,9 @@ public abstract class BaseClassFinderService extends Object
             {
                 if (USE_NO_RESOURCE_HACK)
                 {
-	                try {
-						URL url = classAccess.getResource(baseName);
-						InputStream stream = url.openStream();
-						resourceBundle = new PropertyResourceBundle(stream);
-					} catch (IOException e) {
-						e.printStackTrace();
-					}
+                    Bundle bundle = FrameworkUtil.getBundle(classAccess.getClass());
+                    if (bundle != null)
+                        resourceBundle = resourceBundleLoader.getBundle(bundle, classAccess, baseName, locale);   // The service finds the resources
                 }
                 else
                 {
@@ -440,18 +937,10 @@ public abstract class BaseClassFinderService extends Object
         else
         {
         	Bundle bundle = this.findBundle(resource, bundleContext, ClassFinderActivator.getPackageName(baseName, true), versionRange);
+            if (bundle == null)
+                return null;
             if (USE_NO_RESOURCE_HACK)
-            {
-                try {
-                	// TODO - If I have to do this, then I will have to link up the resourcebundle using the locales.
-                	baseName = baseName.replace('.', File.separatorChar) + ClassFinderActivator.PROPERTIES;
-					URL url = bundle.getEntry(baseName);
-					if (url != null)
-						resourceBundle = new PropertyResourceBundle(url.openStream());
-				} catch (IOException e) {
-					e.printStackTrace();
-				}
-            }
+                resourceBundle = resourceBundleLoader.getBundle(bundle, baseName, locale);   // Linked up using the locales
             else
             {
             	ClassLoader loader = bundle.getClass().getClassLoader();
@@ -515,16 +1004,36 @@ public abstract class BaseClassFinderService extends Object
     
     /**
      * Resource cache code.
-     * TODO(don) - Need to listen for stopped bundles.
+     * Entries are removed when their bundle is uninstalled or updated (and when the repository changes).
      */
-    protected Map<String,Object> resourceMap = new HashMap<String,Object>(); 
+    protected BoundedCache<String,Object> resourceCache = new BoundedCache<String,Object>(DEFAULT_RESOURCE_CACHE_SIZE, 0); 
     public Object getResourceFromCache(String packageName)
     {
-    	return resourceMap.get(packageName);
+    	return resourceCache.get(packageName);
     }
     public void addResourceToCache(String packageName, Object resource)
     {
-    	resourceMap.put(packageName, resource);
+    	resourceCache.put(packageName, resource);
+    }
+    /**
+     * Remove the cached resources that belong to this bundle.
+     * @param bundle
+     */
+    public void removeResourcesFromCache(final Bundle bundle)
+    {
+        resourceCache.removeAll(new BoundedCache.EntryFilter<String, Object>() {
+            public boolean accept(String packageName, Object resource)
+            {
+                return isResourceBundleMatch(resource, bundle);
+            }
+        });
+    }
+    /**
+     * Remove all the cached resources (call this when the repositories change).
+     */
+    public void clearResourceCache()
+    {
+        resourceCache.clear();
     }
     /**
      * Find the currently installed bundle that exports this package.
@@ -540,14 +1049,16 @@ public abstract class BaseClassFinderService extends Object
             return null;
         if (objResource == null)
             return BaseClassFinderService.findBundle((BundleContext)bundleContext, packageName, versionRange);
-        Bundle[] bundles = ((BundleContext)bundleContext).getBundles();
+        Bundle[] bundles = null;
+        String symbolicName = this.getResourceSymbolicName(objResource);
+        if (symbolicName != null)
+            bundles = ExportPackageIndex.getIndex((BundleContext)bundleContext).getBundles(symbolicName);
+        else
+            bundles = ((BundleContext)bundleContext).getBundles();
         for (Bundle bundle : bundles)
         {
-            if (objResource != null)
-            {
-                if (this.isResourceBundleMatch(objResource, bundle))
-                    return bundle;               
-            }
+            if (this.isResourceBundleMatch(objResource, bundle))
+                return bundle;               
         }
         return null;
     }
@@ -561,57 +1072,9 @@ public abstract class BaseClassFinderService extends Object
     {
         if (context == null)
             return null;
-        Bundle[] bundles = context.getBundles();
-        Bundle bestBundle = null;
-        for (Bundle bundle : bundles)
-        {
-            if (packageName != null)
-            {
-                Dictionary<?, ?> dictionary = bundle.getHeaders();
-                String packages = (String)dictionary.get(Constants.EXPORT_PACKAGE);
-                Version bundleVersion = new Version((String)dictionary.get(Constants.BUNDLE_VERSION));
-
-                StringBuilder sb = new StringBuilder(packages == null ? "" : packages);
-                while (true)
-                {
-                    int start = sb.indexOf("=\"");
-                    if (start == -1)
-                        break;
-                    int end = sb.indexOf("\"", start + 2);
-                    if ((start > -1) && (end > -1))
-                        sb.delete(start, end + 1);
-                    else
-                        break;  // never
-                }
-                while (true)
-                {
-                    int semi = sb.indexOf(";");
-                    if (semi == -1)
-                        break;
-                    int comma = sb.indexOf(",", semi);
-                    if (comma == -1)
-                        comma = sb.length();
-                    else if (sb.charAt(comma + 1) == ' ')
-                        comma++;
-                    if ((semi > -1) && (comma > -1))
-                        sb.delete(semi, comma);
-                    else
-                        break;  // never
-                }
-                
-                String[] packs = sb.toString().split(",");
-                for (String pack : packs)
-                {
-                    if (packageName.equals(pack))
-                    {
-                        if (isValidVersion(bundleVersion, versionRange))
-                            bestBundle = bundle;
-                    }
-                }
-            }
-        }
-        
-        return bestBundle;
+        if (packageName == null)
+            return null;
+        return ExportPackageIndex.getIndex(context).findBundle(packageName, versionRange);
     }
     /**
      * Is this the same bundle (override this if you use a persistence finder - like obr)
@@ -623,6 +1086,15 @@ public abstract class BaseClassFinderService extends Object
     {
     	return false;	// Override this
     }
+    /**
+     * Get the bundle symbolic name of this resource (override this if you use a persistence finder - like obr)
+     * @param objResource
+     * @return The symbolic name or null if unknown (all the bundles will be checked)
+     */
+    public String getResourceSymbolicName(Object objResource)
+    {
+    	return null;	// Override this
+    }
 
     /**
      * Log this message.
@@ -690,52 +1162,6 @@ public abstract class BaseClassFinderService extends Object
     {
         if (versionRange == null)
             return true;
-       
-        if ((versionRange.contains(",")) || (versionRange.contains("[")) || (versionRange.contains("]")) || (versionRange.contains("(")) || (versionRange.contains(")")))
-        {
-            // There has to be better code in the osgi framework that will parse ranges like [1.2.3)
-            try {
-                boolean valid = true;
-                StringTokenizer st = new StringTokenizer(versionRange, ",");
-                while (st.hasMoreTokens())
-                {
-                    String range = st.nextToken();
-                    char start = SPACE, end = SPACE;
-                    if ((range.startsWith("[")) || (range.startsWith("(")))
-                        {start = range.charAt(0);range = range.substring(1);}
-                    if ((range.endsWith("]")) || (range.endsWith(")")))
-                        {end = range.charAt(range.length() - 1);range = range.substring(0, range.length() - 1);}
-
-                    Version rangeVersion = new Version(range);
-                    if ((start == '[') && (version.compareTo(rangeVersion)) < 0)
-                        valid = false;
-                    if ((start == '(') && (version.compareTo(rangeVersion)) <= 0)
-                        valid = false;
-                    if ((end == ']') && (version.compareTo(rangeVersion)) >= 0)
-                        valid = false;
-                    if ((end == ')') && (version.compareTo(rangeVersion)) > 0)
-                        valid = false;
-                }
-                return valid;
-            } catch (IllegalArgumentException e) {
-                e.printStackTrace();
-                return true;    // Weird version = okay?
-            }
-        }
-        else
-        {
-            try {
-                Version rangeVersion = new Version(versionRange);
-                if (rangeVersion.equals(version))
-                    return true;
-                // HACK HACK HACK - This code is for sloppy bundle definitions (standard practice okays major and minor match)
-                if (version.getMajor() == rangeVersion.getMajor())
-                    if (version.getMinor() >= rangeVersion.getMinor())
-                        return true;
-                return false;
-            } catch (IllegalArgumentException e) {
-                return true;    // Weird version = okay?
-            }
-        }
+        return VersionRange.parse(versionRange).includes(version);
     }
 }
@@ -0,0 +1,186 @@
+/*
+ * Copyright © 2012 jbundle.org. All rights reserved.
+ */
+package org.jbundle.util.osgi.finder;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * BoundedCache - A thread-safe, size-bounded (least recently used) cache
+ * with an optional time-to-live for each entry.
+ * @author don
+ *
+ * @param <K> The key
+ * @param <V> The value
+ */
+public class BoundedCache<K, V>
+{
+    /**
+     * Maximum number of entries.
+     */
+    protected final int maxEntries;
+    /**
+     * Time to live in milliseconds (0 = forever).
+     */
+    protected final long timeToLive;
+    /**
+     * The entries in access order (synchronize on the map).
+     */
+    protected final LinkedHashMap<K, Entry<V>> map;
+    /**
+     * Counters.
+     */
+    protected final CacheStats stats = new CacheStats();
+
+    /**
+     * Constructor.
+     * @param maxEntries Maximum number of entries
+     * @param timeToLive Time to live in milliseconds (0 = forever)
+     */
+    public BoundedCache(int maxEntries, long timeToLive)
+    {
+        super();
+        this.maxEntries = maxEntries;
+        this.timeToLive = timeToLive;
+        map = new LinkedHashMap<K, Entry<V>>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<K, Entry<V>> eldest)
+            {
+                if (size() <= BoundedCache.this.maxEntries)
+                    return false;
+                stats.recordEviction();
+                return true;
+            }
+        };
+    }
+    /**
+     * Get this value.
+     * @param key
+     * @return The value or null if it is not in the cache (or it has expired).
+     */
+    public V get(K key)
+    {
+        synchronized (map)
+        {
+            Entry<V> entry = map.get(key);
+            if (entry != null)
+                if ((timeToLive > 0) && (System.currentTimeMillis() > entry.expires))
+            {
+                map.remove(key);
+                stats.recordEviction();
+                entry = null;
+            }
+            if (entry == null)
+            {
+                stats.recordMiss();
+                return null;
+            }
+            stats.recordHit();
+            return entry.value;
+        }
+    }
+    /**
+     * Add this value.
+     * @param key
+     * @param value
+     */
+    public void put(K key, V value)
+    {
+        Entry<V> entry = new Entry<V>(value, (timeToLive > 0) ? System.currentTimeMillis() + timeToLive : 0);
+        synchronized (map)
+        {
+            map.put(key, entry);
+        }
+    }
+    /**
+     * Remove this value.
+     * @param key
+     * @return The old value (or null)
+     */
+    public V remove(K key)
+    {
+        Entry<V> entry = null;
+        synchronized (map)
+        {
+            entry = map.remove(key);
+        }
+        return (entry != null) ? entry.value : null;
+    }
+    /**
+     * Remove the entries that this filter accepts.
+     * @param filter
+     * @return The number of entries removed
+     */
+    public int removeAll(EntryFilter<K, V> filter)
+    {
+        int count = 0;
+        synchronized (map)
+        {
+            Iterator<Map.Entry<K, Entry<V>>> iterator = map.entrySet().iterator();
+            while (iterator.hasNext())
+            {
+                Map.Entry<K, Entry<V>> entry = iterator.next();
+                if (filter.accept(entry.getKey(), entry.getValue().value))
+                {
+                    iterator.remove();
+                    stats.recordEviction();
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+    /**
+     * Remove all the entries.
+     */
+    public void clear()
+    {
+        synchronized (map)
+        {
+            map.clear();
+        }
+    }
+    /**
+     * Get the current number of entries.
+     */
+    public int size()
+    {
+        synchronized (map)
+        {
+            return map.size();
+        }
+    }
+    /**
+     * Get the counters.
+     */
+    public CacheStats getStats()
+    {
+        return stats;
+    }
+
+    /**
+     * Selects entries for removeAll.
+     */
+    public interface EntryFilter<K, V>
+    {
+        public boolean accept(K key, V value);
+    }
+    /**
+     * A cached value.
+     */
+    protected static class Entry<V>
+    {
+        protected final V value;
+        protected final long expires;
+
+        public Entry(V value, long expires)
+        {
+            this.value = value;
+            this.expires = expires;
+        }
+    }
+}
@@ -0,0 +1,146 @@
+/*
+ * Copyright © 2012 jbundle.org. All rights reserved.
+ */
+package org.jbundle.util.osgi.finder;
+
+import java.lang.ref.WeakReference;
+import java.net.URL;
+import java.util.Enumeration;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.osgi.framework.Bundle;
+import org.osgi.framework.wiring.BundleRevision;
+import org.osgi.framework.wiring.BundleWiring;
+
+/**
+ * BundleClassLoaderCache - Cache of bundle class loaders by bundle revision.
+ * The class loader comes from the bundle's wiring, so nothing has to be loaded to find it.
+ * An entry is only used while the bundle's current revision is the one it was cached for,
+ * and the entries are weakly referenced so the old class loaders can be collected after a refresh.
+ * Call removeBundle when a bundle is unresolved, updated, or uninstalled.
+ *
+ * @author don
+ *
+ */
+public class BundleClassLoaderCache
+{
+    protected final Map<Long, LoaderEntry> map = new ConcurrentHashMap<Long, LoaderEntry>();
+
+    protected final CacheStats stats = new CacheStats();
+
+    /**
+     * Constructor.
+     */
+    public BundleClassLoaderCache()
+    {
+        super();
+    }
+    /**
+     * Get this bundle's class loader.
+     * @param bundle The bundle
+     * @param packageName A package in the bundle (only used if the bundle doesn't have a wiring)
+     * @return The class loader or null if the bundle isn't (and can't be) resolved.
+     */
+    public ClassLoader getClassLoader(Bundle bundle, String packageName)
+    {
+        BundleRevision revision = BundleClassLoaderCache.getRevision(bundle);
+        LoaderEntry entry = map.get(bundle.getBundleId());
+        if ((entry != null) && (revision != null) && (entry.isRevision(revision)))
+        {
+            ClassLoader classLoader = entry.get();
+            if (classLoader != null)
+            {
+                stats.recordHit();
+                return classLoader;
+            }
+        }
+        stats.recordMiss();
+        ClassLoader classLoader = null;
+        BundleWiring wiring = (revision != null) ? revision.getWiring() : null;
+        if (wiring != null)
+            classLoader = wiring.getClassLoader();
+        if (classLoader == null)
+        {   // Not resolved yet (or a fragment) - loading a class resolves it
+            classLoader = BundleClassLoaderCache.loadClassLoader(bundle, packageName);
+            revision = BundleClassLoaderCache.getRevision(bundle);
+        }
+        if ((classLoader != null) && (revision != null))
+            map.put(bundle.getBundleId(), new LoaderEntry(revision, classLoader));
+        return classLoader;
+    }
+    /**
+     * Get this bundle's current revision.
+     * @return The revision or null if the framework doesn't support wiring (pre R4.3).
+     */
+    public static BundleRevision getRevision(Bundle bundle)
+    {
+        try {
+            return bundle.adapt(BundleRevision.class);
+        } catch (AbstractMethodError e) {
+            return null;
+        }
+    }
+    /**
+     * Get the class loader by loading a class from this package.
+     * This is kind of a hokey way to get the classloader from a bundle - find a class file and load it - but it works.
+     */
+    public static ClassLoader loadClassLoader(Bundle bundle, String packageName)
+    {
+        if (packageName == null)
+            return null;
+        @SuppressWarnings("unchecked")
+        Enumeration<URL> entries = bundle.findEntries(packageName.replace('.', '/'), "*.class", true);
+        if ((entries == null) || (!entries.hasMoreElements()))
+            return null;
+        URL url = entries.nextElement();
+        String path = url.getFile();
+        int start = path.startsWith("/") ? 1 : 0;  // Path should always start at the root.
+        path = path.substring(start, path.lastIndexOf('.')).replace('/', '.');
+        try {
+            return bundle.loadClass(path).getClassLoader();
+        } catch (ClassNotFoundException e) {
+            e.printStackTrace();
+        }
+        return null;
+    }
+    /**
+     * Remove this bundle's class loader (it was unresolved, updated, or uninstalled).
+     */
+    public void removeBundle(long bundleId)
+    {
+        map.remove(bundleId);
+    }
+    /**
+     * Remove all the class loaders.
+     */
+    public void clear()
+    {
+        map.clear();
+    }
+    /**
+     * Get the counters.
+     */
+    public CacheStats getStats()
+    {
+        return stats;
+    }
+
+    /**
+     * A (weakly referenced) class loader and the revision it belongs to.
+     */
+    protected static final class LoaderEntry extends WeakReference<ClassLoader>
+    {
+        protected final WeakReference<BundleRevision> revision;
+
+        public LoaderEntry(BundleRevision revision, ClassLoader classLoader)
+        {
+            super(classLoader);
+            this.revision = new WeakReference<BundleRevision>(revision);
+        }
+        public boolean isRevision(BundleRevision revision)
+        {
+            return this.revision.get() == revision;
+        }
+    }
+}
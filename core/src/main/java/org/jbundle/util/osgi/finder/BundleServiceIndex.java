@@ -0,0 +1,285 @@
+/*
+ * Copyright © 2012 jbundle.org. All rights reserved.
+ */
+package org.jbundle.util.osgi.finder;
+
+import java.util.Dictionary;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.jbundle.util.osgi.BundleService;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.Constants;
+import org.osgi.framework.Filter;
+import org.osgi.framework.InvalidSyntaxException;
+import org.osgi.framework.ServiceReference;
+import org.osgi.util.tracker.ServiceTracker;
+import org.osgi.util.tracker.ServiceTrackerCustomizer;
+
+/**
+ * BundleServiceIndex - Index of the registered bundle services by package name.
+ * A single service tracker follows every service registered with a packageName property,
+ * so finding a bundle service is a map lookup instead of a service registry query.
+ * There is one index per framework.
+ * 
+ * @author don
+ *
+ */
+@SuppressWarnings({ "rawtypes", "unchecked" })
+public class BundleServiceIndex
+	implements ServiceTrackerCustomizer
+{
+    /**
+     * One index per framework (keyed by the system bundle).
+     */
+    protected static Map<Bundle, BundleServiceIndex> indexes = new HashMap<Bundle, BundleServiceIndex>();
+
+    protected BundleContext context = null;
+
+    protected ServiceTracker tracker = null;
+    /**
+     * Package name to the service references (highest ranking first).
+     * Note: The arrays are never changed once they are in the map.
+     */
+    protected Map<String, ServiceReference[]> packageMap = new ConcurrentHashMap<String, ServiceReference[]>();
+    /**
+     * Service reference to the package name it is indexed under.
+     */
+    protected Map<ServiceReference, String> referenceMap = new HashMap<ServiceReference, String>();
+
+    /**
+     * Constructor.
+     */
+    protected BundleServiceIndex(BundleContext context)
+    {
+        super();
+        this.context = context;
+    }
+    /**
+     * Get the bundle service index for this framework, starting it if this is the first call.
+     * @param context Any bundle context in the framework
+     * @return The index or null if there is no context
+     */
+    public static BundleServiceIndex getIndex(BundleContext context)
+    {
+        if (context == null)
+            return null;
+        Bundle systemBundle = context.getBundle(0);
+        synchronized (indexes)
+        {
+            BundleServiceIndex index = indexes.get(systemBundle);
+            if (index == null)
+            {
+                BundleContext systemContext = (systemBundle != null) ? systemBundle.getBundleContext() : null;
+                if (systemContext == null)
+                    systemContext = context;
+                index = new BundleServiceIndex(systemContext);
+                if (!index.open())
+                    return null;
+                indexes.put(systemBundle, index);
+            }
+            return index;
+        }
+    }
+    /**
+     * Remove the index for this framework.
+     * @param context Any bundle context in the framework
+     */
+    public static void closeIndex(BundleContext context)
+    {
+        if (context == null)
+            return;
+        BundleServiceIndex index = null;
+        synchronized (indexes)
+        {
+            index = indexes.remove(context.getBundle(0));
+        }
+        if (index != null)
+            index.close();
+    }
+    /**
+     * Start tracking the bundle services.
+     * @return true if successful
+     */
+    public boolean open()
+    {
+        try {
+            Filter filter = context.createFilter("(" + BundleService.PACKAGE_NAME + "=*)");
+            tracker = new ServiceTracker(context, filter, this);
+            tracker.open();
+            return true;
+        } catch (InvalidSyntaxException e) {
+            e.printStackTrace();    // Never
+        }
+        return false;
+    }
+    /**
+     * Stop tracking.
+     */
+    public void close()
+    {
+        if (tracker != null)
+            tracker.close();
+        tracker = null;
+        synchronized (this)
+        {
+            packageMap.clear();
+            referenceMap.clear();
+        }
+    }
+    /**
+     * Find the highest ranked service registered under this interface and package name.
+     * @param interfaceName The interface (objectClass) the service was registered under
+     * @param packageName The package name property
+     * @param filter Other properties that must match (null if none)
+     * @param versionRange The version range (null for any)
+     * @return The service reference or null if none match.
+     */
+    public ServiceReference getServiceReference(String interfaceName, String packageName, Dictionary<String, String> filter, String versionRange)
+    {
+        if (packageName == null)
+            return null;
+        ServiceReference[] refs = packageMap.get(packageName);
+        if (refs == null)
+            return null;
+        Filter versionFilter = null;
+        if ((versionRange != null) && (versionRange.length() > 0))
+        {
+            versionFilter = FilterCache.getFilter(null, packageName, null, versionRange);
+            if (versionFilter == null)
+                return null;
+        }
+        for (ServiceReference ref : refs)
+        {
+            if (!BundleServiceIndex.isInterfaceMatch(ref, interfaceName))
+                continue;
+            if (!BundleServiceIndex.isPropertyMatch(ref, filter))
+                continue;
+            if (versionFilter != null)
+                if (!versionFilter.match(ref))
+                    continue;
+            return ref;
+        }
+        return null;
+    }
+    /**
+     * Was this service registered under this interface name?
+     */
+    public static boolean isInterfaceMatch(ServiceReference ref, String interfaceName)
+    {
+        if (interfaceName == null)
+            return true;
+        Object objectClass = ref.getProperty(Constants.OBJECTCLASS);
+        if (objectClass instanceof String[])
+        {
+            for (String name : (String[])objectClass)
+            {
+                if (interfaceName.equals(name))
+                    return true;
+            }
+            return false;
+        }
+        return interfaceName.equals(objectClass);
+    }
+    /**
+     * Do these service properties match the filter properties?
+     * Note: The interface key is matched against the objectClass, not a property.
+     */
+    public static boolean isPropertyMatch(ServiceReference ref, Dictionary<String, String> filter)
+    {
+        if (filter == null)
+            return true;
+        Enumeration<String> keys = filter.keys();
+        while (keys.hasMoreElements())
+        {
+            String key = keys.nextElement();
+            if (key.equals(BundleService.INTERFACE))
+                continue;
+            Object value = ref.getProperty(key);
+            if ((value == null) || (!value.toString().equals(filter.get(key))))
+                return false;
+        }
+        return true;
+    }
+    /**
+     * A bundle service was registered.
+     */
+    @Override
+    public Object addingService(ServiceReference reference)
+    {
+        Object packageName = reference.getProperty(BundleService.PACKAGE_NAME);
+        if (packageName == null)
+            return null;    // Never
+        this.addReference(reference, packageName.toString());
+        return reference;   // Note: I track the reference so I don't get the service (or start it).
+    }
+    /**
+     * The properties changed (the ranking or package name may have changed).
+     */
+    @Override
+    public void modifiedService(ServiceReference reference, Object service)
+    {
+        this.removeReference(reference);
+        Object packageName = reference.getProperty(BundleService.PACKAGE_NAME);
+        if (packageName != null)
+            this.addReference(reference, packageName.toString());
+    }
+    /**
+     * A bundle service was unregistered.
+     */
+    @Override
+    public void removedService(ServiceReference reference, Object service)
+    {
+        this.removeReference(reference);
+    }
+    /**
+     * Add this reference (highest ranking first).
+     */
+    protected synchronized void addReference(ServiceReference reference, String packageName)
+    {
+        ServiceReference[] refs = packageMap.get(packageName);
+        int length = (refs == null) ? 0 : refs.length;
+        ServiceReference[] newRefs = new ServiceReference[length + 1];
+        int insert = 0;
+        while ((insert < length) && (refs[insert].compareTo(reference) > 0))
+            insert++;
+        if (refs != null)
+        {
+            System.arraycopy(refs, 0, newRefs, 0, insert);
+            System.arraycopy(refs, insert, newRefs, insert + 1, length - insert);
+        }
+        newRefs[insert] = reference;
+        packageMap.put(packageName, newRefs);
+        referenceMap.put(reference, packageName);
+    }
+    /**
+     * Remove this reference.
+     */
+    protected synchronized void removeReference(ServiceReference reference)
+    {
+        String packageName = referenceMap.remove(reference);
+        if (packageName == null)
+            return;
+        ServiceReference[] refs = packageMap.get(packageName);
+        if (refs == null)
+            return;
+        int count = 0;
+        ServiceReference[] newRefs = new ServiceReference[refs.length];
+        for (ServiceReference ref : refs)
+        {
+            if (!ref.equals(reference))
+                newRefs[count++] = ref;
+        }
+        if (count == 0)
+            packageMap.remove(packageName);
+        else
+        {
+            ServiceReference[] trimmedRefs = new ServiceReference[count];
+            System.arraycopy(newRefs, 0, trimmedRefs, 0, count);
+            packageMap.put(packageName, trimmedRefs);
+        }
+    }
+}
@@ -8,6 +8,12 @@ import org.osgi.framework.BundleContext;
 import org.osgi.framework.BundleEvent;
 import org.osgi.framework.BundleListener;
 
+/**
+ * BundleStartupListener - Notify this thread when the bundle is started.
+ * @author don
+ * @deprecated Use StartupTracker.whenBundleStarted.
+ */
+@Deprecated
 public class BundleStartupListener implements BundleListener
 {
     BundleContext context = null;
@@ -0,0 +1,73 @@
+/*
+ * Copyright © 2012 jbundle.org. All rights reserved.
+ */
+package org.jbundle.util.osgi.finder;
+
+/**
+ * CacheKey - A (type, name, version range) lookup key.
+ * @author don
+ *
+ */
+public final class CacheKey
+{
+    protected final String type;
+    protected final String name;
+    protected final String versionRange;
+    private final int hashCode;
+
+    /**
+     * Constructor.
+     * @param type The kind of lookup (ie., class, resource)
+     * @param name The class, resource, or package name
+     * @param versionRange Version range (may be null)
+     */
+    public CacheKey(String type, String name, String versionRange)
+    {
+        this.type = type;
+        this.name = name;
+        this.versionRange = versionRange;
+        int hash = (type == null) ? 0 : type.hashCode();
+        hash = 31 * hash + ((name == null) ? 0 : name.hashCode());
+        hash = 31 * hash + ((versionRange == null) ? 0 : versionRange.hashCode());
+        this.hashCode = hash;
+    }
+    public String getType()
+    {
+        return type;
+    }
+    public String getName()
+    {
+        return name;
+    }
+    public String getVersionRange()
+    {
+        return versionRange;
+    }
+    @Override
+    public int hashCode()
+    {
+        return hashCode;
+    }
+    @Override
+    public boolean equals(Object obj)
+    {
+        if (obj == this)
+            return true;
+        if (!(obj instanceof CacheKey))
+            return false;
+        CacheKey key = (CacheKey)obj;
+        return (hashCode == key.hashCode)
+            && (equals(type, key.type))
+            && (equals(name, key.name))
+            && (equals(versionRange, key.versionRange));
+    }
+    private static boolean equals(String string1, String string2)
+    {
+        return (string1 == null) ? (string2 == null) : string1.equals(string2);
+    }
+    @Override
+    public String toString()
+    {
+        return type + ":" + name + ((versionRange == null) ? "" : ";" + versionRange);
+    }
+}
@@ -0,0 +1,74 @@
+/*
+ * Copyright © 2012 jbundle.org. All rights reserved.
+ */
+package org.jbundle.util.osgi.finder;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * CacheStats - Hit, miss, and eviction counters for a finder cache.
+ * @author don
+ *
+ */
+public class CacheStats
+{
+    protected final AtomicLong hits = new AtomicLong();
+    protected final AtomicLong misses = new AtomicLong();
+    protected final AtomicLong evictions = new AtomicLong();
+
+    /**
+     * Constructor.
+     */
+    public CacheStats()
+    {
+        super();
+    }
+    public void recordHit()
+    {
+        hits.incrementAndGet();
+    }
+    public void recordMiss()
+    {
+        misses.incrementAndGet();
+    }
+    public void recordEviction()
+    {
+        evictions.incrementAndGet();
+    }
+    public long getHitCount()
+    {
+        return hits.get();
+    }
+    public long getMissCount()
+    {
+        return misses.get();
+    }
+    public long getEvictionCount()
+    {
+        return evictions.get();
+    }
+    /**
+     * Get the hit rate.
+     * @return The hit rate (0.0 - 1.0) or 0 if there have been no requests.
+     */
+    public double getHitRate()
+    {
+        long hitCount = hits.get();
+        long requests = hitCount + misses.get();
+        return (requests == 0) ? 0.0 : (double)hitCount / requests;
+    }
+    /**
+     * Reset the counters.
+     */
+    public void reset()
+    {
+        hits.set(0);
+        misses.set(0);
+        evictions.set(0);
+    }
+    @Override
+    public String toString()
+    {
+        return "hits=" + hits.get() + ", misses=" + misses.get() + ", evictions=" + evictions.get() + ", hitRate=" + this.getHitRate();
+    }
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright © 2012 jbundle.org. All rights reserved.
+ */
+package org.jbundle.util.osgi.finder;
+
+import java.lang.ref.WeakReference;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.osgi.framework.Bundle;
+import org.osgi.framework.FrameworkUtil;
+
+/**
+ * ClassCache - Cache of resolved classes by (class name, version range).
+ * The classes are weakly referenced so the bundle class loaders can still be collected.
+ * Call removeBundle when a bundle is unresolved, updated, or uninstalled.
+ * 
+ * @author don
+ *
+ */
+public class ClassCache
+{
+    /**
+     * Bundle id for classes that don't come from a bundle.
+     */
+    public static final long NO_BUNDLE = -1;
+
+    protected final Map<CacheKey, ClassEntry> map = new ConcurrentHashMap<CacheKey, ClassEntry>();
+
+    protected final CacheStats stats = new CacheStats();
+
+    /**
+     * Constructor.
+     */
+    public ClassCache()
+    {
+        super();
+    }
+    /**
+     * Get this class.
+     * @param className
+     * @param versionRange
+     * @return The class or null if it is not cached.
+     */
+    public Class<?> get(String className, String versionRange)
+    {
+        CacheKey key = new CacheKey(BaseClassFinderService.CLASS_TYPE, className, versionRange);
+        ClassEntry entry = map.get(key);
+        Class<?> c = (entry != null) ? entry.get() : null;
+        if (c == null)
+        {
+            if (entry != null)
+                map.remove(key);    // Class loader was collected
+            stats.recordMiss();
+        }
+        else
+            stats.recordHit();
+        return c;
+    }
+    /**
+     * Add this class.
+     * @param className
+     * @param versionRange
+     * @param c
+     */
+    public void put(String className, String versionRange, Class<?> c)
+    {
+        if (c == null)
+            return;
+        Bundle bundle = FrameworkUtil.getBundle(c);
+        long bundleId = (bundle != null) ? bundle.getBundleId() : NO_BUNDLE;
+        map.put(new CacheKey(BaseClassFinderService.CLASS_TYPE, className, versionRange), new ClassEntry(c, bundleId));
+    }
+    /**
+     * Remove all the classes loaded by this bundle.
+     * @param bundleId
+     */
+    public void removeBundle(long bundleId)
+    {
+        Iterator<ClassEntry> iterator = map.values().iterator();
+        while (iterator.hasNext())
+        {
+            ClassEntry entry = iterator.next();
+            if ((entry.bundleId == bundleId) || (entry.get() == null))
+            {
+                iterator.remove();
+                stats.recordEviction();
+            }
+        }
+    }
+    /**
+     * Remove all the classes.
+     */
+    public void clear()
+    {
+        map.clear();
+    }
+    /**
+     * Get the counters.
+     */
+    public CacheStats getStats()
+    {
+        return stats;
+    }
+
+    /**
+     * A weakly referenced class and the id of the bundle that owns it.
+     */
+    protected static class ClassEntry extends WeakReference<Class<?>>
+    {
+        protected final long bundleId;
+
+        public ClassEntry(Class<?> c, long bundleId)
+        {
+            super(c);
+            this.bundleId = bundleId;
+        }
+    }
+}
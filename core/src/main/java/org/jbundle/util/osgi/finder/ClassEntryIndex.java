@@ -0,0 +1,442 @@
+/*
+ * Copyright © 2012 jbundle.org. All rights reserved.
+ */
+package org.jbundle.util.osgi.finder;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.Constants;
+import org.osgi.framework.Version;
+
+/**
+ * ClassEntryIndex - Index of the .class entries in each installed bundle, so the finder can tell
+ * which bundle has a class in a private (not exported) package without scanning the bundles
+ * or deploying anything.
+ * The index is not built until it is first used, then each bundle is indexed on a background pool;
+ * a lookup never waits, it only sees the bundles that are finished indexing.
+ * Entries are read with getEntryPaths, so indexing a bundle doesn't resolve it.
+ * Each bundle's entries are kept as sorted arrays (package names and the class names in each package)
+ * and are tagged with the bundle's revision (last modified time), so a stale entry is re-indexed.
+ * Note: Classes in embedded jars (on the Bundle-ClassPath) are not indexed.
+ *
+ * @author don
+ *
+ */
+public class ClassEntryIndex
+{
+    /**
+     * The context to get the installed bundles from.
+     */
+    protected BundleContext context = null;
+    /**
+     * Number of threads to index the bundles with.
+     */
+    protected int threads = 1;
+    /**
+     * Bundle id to its (possibly not finished) entries.
+     */
+    protected final Map<Long, Future<BundleClasses>> bundleMap = new ConcurrentHashMap<Long, Future<BundleClasses>>();
+    /**
+     * Bundle id to its entries (the bundles that are finished indexing).
+     */
+    protected final Map<Long, BundleClasses> indexedMap = new ConcurrentHashMap<Long, BundleClasses>();
+    /**
+     * Package name to the ids of the (indexed) bundles that have classes in the package.
+     */
+    protected final Map<String, Set<Long>> packageMap = new ConcurrentHashMap<String, Set<Long>>();
+    /**
+     * Indexes the bundles (null until the index is first used).
+     */
+    protected ExecutorService executor = null;
+    /**
+     * Incremented each time a bundle is indexed or removed (so a snapshot knows when it is stale).
+     */
+    protected volatile int modCount = 0;
+
+    protected final CacheStats stats = new CacheStats();
+
+    /**
+     * Constructor.
+     * @param context The bundle context
+     * @param threads Number of threads to index the bundles with
+     */
+    public ClassEntryIndex(BundleContext context, int threads)
+    {
+        super();
+        this.context = context;
+        this.threads = Math.max(1, threads);
+    }
+    /**
+     * Find the installed bundle that has this class.
+     * If more than one bundle matches, the last one installed is returned.
+     * Bundles that are still being indexed are not checked.
+     * @param className The class name
+     * @param versionRange The (bundle) version range
+     * @return The bundle or null if no (indexed) bundle has the class
+     */
+    public Bundle findBundle(String className, String versionRange)
+    {
+        if (className == null)
+            return null;
+        this.open();
+        int dot = className.lastIndexOf('.');
+        String packageName = (dot == -1) ? "" : className.substring(0, dot);
+        String name = className.substring(dot + 1);
+        Bundle found = null;
+        Set<Long> bundleIds = packageMap.get(packageName);
+        if (bundleIds != null)
+        {
+            VersionRange range = VersionRange.parse(versionRange);
+            for (Long bundleId : bundleIds)
+            {
+                if ((found != null) && (bundleId < found.getBundleId()))
+                    continue;
+                BundleClasses classes = indexedMap.get(bundleId);
+                if ((classes == null) || (!classes.contains(packageName, name)) || (!range.includes(classes.bundleVersion)))
+                    continue;
+                if (classes.lastModified != classes.bundle.getLastModified())
+                {   // Updated since it was indexed (I missed the event)
+                    if (classes.bundle.getState() == Bundle.UNINSTALLED)
+                        this.removeBundle(bundleId);
+                    else
+                        this.addBundle(classes.bundle);
+                    continue;
+                }
+                found = classes.bundle;
+            }
+        }
+        if (found != null)
+            stats.recordHit();
+        else
+            stats.recordMiss();
+        return found;
+    }
+    /**
+     * Start indexing the installed bundles (if I haven't already).
+     */
+    public synchronized void open()
+    {
+        if (executor != null)
+            return;
+        executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            int count = 0;
+            public Thread newThread(Runnable runnable)
+            {
+                Thread thread = new Thread(runnable, "ClassEntryIndex " + (++count));
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        Bundle[] bundles = context.getBundles();
+        if (bundles != null)
+            for (Bundle bundle : bundles)
+        {
+            if (!bundleMap.containsKey(bundle.getBundleId()))  // Restored from a snapshot
+                this.addBundle(bundle);
+        }
+    }
+    /**
+     * Stop indexing and clear the index.
+     * The bundles that are not finished indexing are cancelled.
+     */
+    public synchronized void close()
+    {
+        for (Future<BundleClasses> future : bundleMap.values())
+        {
+            future.cancel(false);
+        }
+        if (executor != null)
+            executor.shutdownNow();
+        executor = null;
+        bundleMap.clear();
+        indexedMap.clear();
+        packageMap.clear();
+    }
+    /**
+     * (Re)index this bundle (it was installed or updated).
+     * Does nothing until the index is first used.
+     */
+    public synchronized void addBundle(final Bundle bundle)
+    {
+        if (executor == null)
+            return;
+        if (bundle.getState() == Bundle.UNINSTALLED)
+        {
+            this.removeBundle(bundle.getBundleId());
+            return;
+        }
+        bundleMap.put(bundle.getBundleId(), executor.submit(new Callable<BundleClasses>() {
+            public BundleClasses call()
+            {
+                BundleClasses classes = ClassEntryIndex.indexBundle(bundle);
+                putBundleClasses(classes);
+                modCount++;
+                return classes;
+            }
+        }));
+    }
+    /**
+     * Add these entries to the lookup maps (replacing the bundle's old entries).
+     */
+    protected void putBundleClasses(BundleClasses classes)
+    {
+        Long bundleId = classes.bundle.getBundleId();
+        synchronized (packageMap)
+        {
+            this.removePackages(indexedMap.put(bundleId, classes));
+            for (String packageName : classes.packageNames)
+            {
+                Set<Long> bundleIds = packageMap.get(packageName);
+                if (bundleIds == null)
+                    packageMap.put(packageName, bundleIds = ConcurrentHashMap.<Long>newKeySet());
+                bundleIds.add(bundleId);
+            }
+        }
+    }
+    /**
+     * Remove these (old) entries from the package map.
+     */
+    private void removePackages(BundleClasses classes)
+    {
+        if (classes == null)
+            return;
+        Long bundleId = classes.bundle.getBundleId();
+        for (String packageName : classes.packageNames)
+        {
+            Set<Long> bundleIds = packageMap.get(packageName);
+            if (bundleIds != null)
+            {
+                bundleIds.remove(bundleId);
+                if (bundleIds.isEmpty())
+                    packageMap.remove(packageName);
+            }
+        }
+    }
+    /**
+     * Add these (previously indexed) entries, if the bundle hasn't changed since they were indexed.
+     * @return true if the entries were added.
+     */
+    public boolean restoreBundle(BundleClasses classes)
+    {
+        if ((classes.bundle.getState() == Bundle.UNINSTALLED) || (classes.lastModified != classes.bundle.getLastModified()))
+            return false;
+        bundleMap.put(classes.bundle.getBundleId(), CompletableFuture.completedFuture(classes));
+        this.putBundleClasses(classes);
+        return true;
+    }
+    /**
+     * Get the entries of the bundles that are finished indexing.
+     */
+    public List<BundleClasses> getIndexedBundles()
+    {
+        return new ArrayList<BundleClasses>(indexedMap.values());
+    }
+    /**
+     * Get the change count (changes each time a bundle is indexed or removed).
+     */
+    public int getModCount()
+    {
+        return modCount;
+    }
+    /**
+     * Remove this bundle from the index (it was uninstalled).
+     */
+    public void removeBundle(long bundleId)
+    {
+        Future<BundleClasses> future = bundleMap.remove(bundleId);
+        if (future != null)
+        {
+            future.cancel(false);
+            modCount++;
+        }
+        synchronized (packageMap)
+        {
+            this.removePackages(indexedMap.remove(bundleId));
+        }
+    }
+    /**
+     * Get the counters.
+     */
+    public CacheStats getStats()
+    {
+        return stats;
+    }
+    /**
+     * Index the .class entries in this bundle.
+     */
+    public static BundleClasses indexBundle(Bundle bundle)
+    {
+        long lastModified = bundle.getLastModified();   // Before I read the entries
+        Version bundleVersion = null;
+        try {
+            bundleVersion = Version.parseVersion(bundle.getHeaders().get(Constants.BUNDLE_VERSION));
+        } catch (IllegalArgumentException e) {
+            bundleVersion = Version.emptyVersion;   // Weird version
+        }
+        String[] roots = ClassEntryIndex.getClassPathRoots(bundle.getHeaders().get(Constants.BUNDLE_CLASSPATH));
+        Map<String, TreeSet<String>> packages = new TreeMap<String, TreeSet<String>>();
+        ClassEntryIndex.addEntries(bundle, "/", roots, packages);
+        String[] packageNames = packages.keySet().toArray(new String[packages.size()]);
+        String[][] classNames = new String[packageNames.length][];
+        for (int i = 0; i < packageNames.length; i++)
+        {
+            TreeSet<String> names = packages.get(packageNames[i]);
+            classNames[i] = names.toArray(new String[names.size()]);
+        }
+        return new BundleClasses(bundle, lastModified, bundleVersion, packageNames, classNames);
+    }
+    /**
+     * Add the class entries in this directory (and its sub-directories) to the package map.
+     * Note: getEntryPaths only reads the bundle's own entries (it doesn't resolve the bundle).
+     */
+    private static void addEntries(Bundle bundle, String directory, String[] roots, Map<String, TreeSet<String>> packages)
+    {
+        Enumeration<String> paths = bundle.getEntryPaths(directory);
+        if (paths == null)
+            return;
+        while (paths.hasMoreElements())
+        {
+            String path = paths.nextElement();
+            if (path.startsWith("/"))
+                path = path.substring(1);
+            if (path.endsWith("/"))
+            {
+                ClassEntryIndex.addEntries(bundle, path, roots, packages);
+                continue;
+            }
+            if (!path.endsWith(".class"))
+                continue;
+            String classRoot = null;
+            for (String root : roots)
+            {   // The most specific root (ie., classes/ before the bundle root)
+                if ((path.startsWith(root)) && ((classRoot == null) || (root.length() > classRoot.length())))
+                    classRoot = root;
+            }
+            if (classRoot != null)
+                ClassEntryIndex.addEntry(packages, path.substring(classRoot.length()));
+        }
+    }
+    /**
+     * Add this class entry (relative to the class path root) to the package map.
+     */
+    private static void addEntry(Map<String, TreeSet<String>> packages, String path)
+    {
+        if (path.startsWith("META-INF/"))
+            return;     // Multi-release and other versioned classes
+        int slash = path.lastIndexOf('/');
+        String name = path.substring(slash + 1, path.length() - ".class".length());
+        if ((name.indexOf('-') != -1) || (name.length() == 0))
+            return;     // package-info, module-info
+        String packageName = (slash == -1) ? "" : path.substring(0, slash).replace('/', '.');
+        TreeSet<String> names = packages.get(packageName);
+        if (names == null)
+            packages.put(packageName, names = new TreeSet<String>());
+        names.add(name);
+    }
+    /**
+     * Get the directory roots on this Bundle-ClassPath (ie., "." and "classes/" return {"", "classes/"}).
+     * @return The roots (the bundle root if there is no header)
+     */
+    public static String[] getClassPathRoots(String header)
+    {
+        if ((header == null) || (header.trim().length() == 0))
+            return new String[] {""};
+        List<String> roots = new ArrayList<String>();
+        for (String entry : header.split(","))
+        {
+            int semi = entry.indexOf(';');
+            if (semi != -1)
+                entry = entry.substring(0, semi);
+            entry = entry.trim();
+            if ((entry.equals(".")) || (entry.equals("/")))
+                entry = "";
+            else if ((entry.endsWith(".jar")) || (entry.endsWith(".zip")) || (entry.length() == 0))
+                continue;   // Embedded jars are not indexed
+            else
+            {
+                if (entry.startsWith("/"))
+                    entry = entry.substring(1);
+                if (!entry.endsWith("/"))
+                    entry = entry + "/";
+            }
+            if (!roots.contains(entry))
+                roots.add(entry);
+        }
+        return roots.toArray(new String[roots.size()]);
+    }
+
+    /**
+     * The classes in one bundle revision.
+     */
+    public static class BundleClasses
+    {
+        protected final Bundle bundle;
+        protected final long lastModified;
+        protected final Version bundleVersion;
+        /**
+         * The package names (sorted).
+         */
+        protected final String[] packageNames;
+        /**
+         * The class names (without the package) in each package (sorted).
+         */
+        protected final String[][] classNames;
+
+        public BundleClasses(Bundle bundle, long lastModified, Version bundleVersion, String[] packageNames, String[][] classNames)
+        {
+            this.bundle = bundle;
+            this.lastModified = lastModified;
+            this.bundleVersion = bundleVersion;
+            this.packageNames = packageNames;
+            this.classNames = classNames;
+        }
+        /**
+         * Does this bundle have this class?
+         * @param packageName The package name
+         * @param name The class name (without the package)
+         */
+        public boolean contains(String packageName, String name)
+        {
+            int index = Arrays.binarySearch(packageNames, packageName);
+            if (index < 0)
+                return false;
+            return Arrays.binarySearch(classNames[index], name) >= 0;
+        }
+        public Bundle getBundle()
+        {
+            return bundle;
+        }
+        public Version getBundleVersion()
+        {
+            return bundleVersion;
+        }
+        public long getLastModified()
+        {
+            return lastModified;
+        }
+        public String[] getPackageNames()
+        {
+            return packageNames;
+        }
+        public String[][] getClassNames()
+        {
+            return classNames;
+        }
+    }
+}
@@ -5,19 +5,20 @@ package org.jbundle.util.osgi.finder;
 
 import java.io.File;
 import java.util.Dictionary;
-import java.util.StringTokenizer;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
-import org.jbundle.util.osgi.BundleService;
 import org.jbundle.util.osgi.ClassFinder;
 import org.jbundle.util.osgi.bundle.BaseBundleService;
 import org.osgi.framework.Bundle;
 import org.osgi.framework.BundleActivator;
 import org.osgi.framework.BundleContext;
 import org.osgi.framework.BundleException;
-import org.osgi.framework.Constants;
 import org.osgi.framework.InvalidSyntaxException;
 import org.osgi.framework.ServiceReference;
-import org.osgi.framework.Version;
 import org.osgi.service.log.LogService;
 
 /**
@@ -133,18 +134,7 @@ public final class ClassFinderActivator extends BaseBundleService
             }
             if ((bundle.getState() & Bundle.ACTIVE) == 0)
             { // Wait for it to start up!
-                Thread thread = Thread.currentThread();
-                BundleStartupListener bundleStartupListener = null;
-                context.addBundleListener(bundleStartupListener = new BundleStartupListener(thread, bundleContext, bundle));
-                // Wait 15 seconds for the ClassService to come up while the activator starts this service
-                synchronized (thread) {
-                    try {
-                        thread.wait((secsToWait == -1) ? DEFAULT_SERVICE_WAIT_SECS * 1000 : secsToWait * 1000);    // Will notify me when it is up
-                    } catch (InterruptedException ex) {
-                        ex.printStackTrace();
-                    }
-                }
-                context.removeBundleListener(bundleStartupListener);
+                ClassFinderActivator.waitFor(StartupTracker.getTracker(context).whenBundleStarted(bundle), secsToWait);
             }
         }
         
@@ -156,6 +146,7 @@ public final class ClassFinderActivator extends BaseBundleService
      * @param bundleClassName
      * @return
      */
+    @SuppressWarnings("rawtypes")
     public static BundleActivator waitForServiceStartup(BundleContext context, String className, String versionRange, Dictionary<String, String> filter, int secsToWait)
     {
         ServiceReference ref = BaseClassFinderService.getClassServiceReference(context, className, versionRange, filter);
@@ -166,43 +157,17 @@ public final class ClassFinderActivator extends BaseBundleService
             else
                 return null;    // Never
         }
-        
-        Bundle bundle = BaseClassFinderService.findBundle(context, ClassFinderActivator.getPackageName(className, false), versionRange);
-        if (bundle == null)
-            if (!className.equals(ClassFinder.class.getName())) // Never. This code is in the ClassFinder bundle.
+        // Start listening before starting the bundle, so I can't miss the registration
+        CompletableFuture<ServiceReference> registered = StartupTracker.getTracker(context).whenServiceRegistered(className, versionRange, filter);
+
+        Bundle bundle = ClassFinderActivator.startServiceBundle(context, className, versionRange, secsToWait);
+        if ((bundle == null)    // Error, can't find bundle
+            || (!ClassFinderActivator.waitForBundleStartup(context, bundle, secsToWait)))
         {
-            ClassFinder classFinder = getClassFinder(context, secsToWait);        
-            String packageName = ClassFinderActivator.getPackageName(className, false);
-            Object resource = classFinder.deployThisResource(packageName, versionRange, true);  // Get the bundle info from the repos
-            bundle = (Bundle)classFinder.findBundle(resource, context, packageName, versionRange);
-        }
-        if (bundle == null)
-            return null;    // Error, can't find bundle
-        
-		Thread thread = Thread.currentThread();
-		ServiceRegisteredListener classFinderListener = null;
-		try {
-			context.addServiceListener(classFinderListener = new ServiceRegisteredListener(thread, bundleContext), "(" + Constants.OBJECTCLASS + "=" + className + ")");
-		} catch (InvalidSyntaxException e) {
-			e.printStackTrace();
-		}
-        if (!ClassFinderActivator.waitForBundleStartup(context, bundle, secsToWait))
+            registered.cancel(false);
             return null;
-		// Double-check to make sure it didn't startup while I was doing all this.
-		BundleService bundleService = getClassFinder(context, secsToWait).getClassBundleService(className, versionRange, filter, 0);
-		if (bundleService == null)
-		{ // Wait 15 seconds for the ClassService to come up while the activator starts this service
-    		synchronized (thread) {
-    			try {
-    				thread.wait((secsToWait == -1) ? DEFAULT_SERVICE_WAIT_SECS * 1000 : secsToWait * 1000);    // Will notify me when it is up
-    			} catch (InterruptedException ex) {
-    				ex.printStackTrace();
-    			}
-    		}
-		}
-		context.removeServiceListener(classFinderListener);
-		
-		ref = BaseClassFinderService.getClassServiceReference(context, className, versionRange, filter);
+        }
+        ref = ClassFinderActivator.waitFor(registered, secsToWait);
 		if (ref == null)
 		{
             ClassServiceUtility.log(context, LogService.LOG_WARNING, "The " + className + " was never registered - make sure you start it!");
@@ -210,6 +175,66 @@ public final class ClassFinderActivator extends BaseBundleService
 		}
 		return (BundleActivator)context.getService(ref);
     }
+    /**
+     * Wait for this future to complete.
+     * @param future The future
+     * @param secsToWait Time to wait (-1 = default, 0 = don't wait, same as getClassFinder)
+     * @return The value or null if it timed out (or failed).
+     */
+    public static <T> T waitFor(CompletableFuture<T> future, int secsToWait)
+    {
+        try {
+            if (secsToWait == 0)
+            {
+                if (future.isDone())
+                    return future.get();
+            }
+            else
+                return future.get((secsToWait == -1) ? DEFAULT_SERVICE_WAIT_SECS : secsToWait, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            // Fall through
+        } catch (CancellationException e) {
+            // Fall through
+        } catch (TimeoutException e) {
+            // Fall through
+        }
+        future.cancel(false);   // Stop waiting
+        return null;
+    }
+    /**
+     * Find (or deploy) the bundle for this service class and start it.
+     * Note: This does not wait for the bundle to start or the service to register.
+     * @param context
+     * @param className The service class name
+     * @param versionRange Version range
+     * @param secsToWait Time to wait for the class finder
+     * @return The bundle or null if it can't be found.
+     */
+    public static Bundle startServiceBundle(BundleContext context, String className, String versionRange, int secsToWait)
+    {
+        String packageName = ClassFinderActivator.getPackageName(className, false);
+        Bundle bundle = BaseClassFinderService.findBundle(context, packageName, versionRange);
+        if (bundle == null)
+            if (!className.equals(ClassFinder.class.getName())) // Never. This code is in the ClassFinder bundle.
+        {
+            ClassFinder classFinder = getClassFinder(context, secsToWait);        
+            Object resource = classFinder.deployThisResource(packageName, versionRange, true);  // Get the bundle info from the repos
+            bundle = (Bundle)classFinder.findBundle(resource, context, packageName, versionRange);
+        }
+        if (bundle != null)
+            if ((bundle.getState() & Bundle.ACTIVE) == 0)
+                if (((bundle.getState() & Bundle.RESOLVED) != 0) || ((bundle.getState() & Bundle.INSTALLED) != 0))
+        {
+            try {
+                bundle.start();
+            } catch (BundleException e) {
+                e.printStackTrace();
+            }
+        }
+        return bundle;
+    }
     /**
      * 
      * ie., (&(package=org.jibx.runtime)(version>=1.2.0)(!(version>=2.0.0)))
@@ -220,46 +245,7 @@ public final class ClassFinderActivator extends BaseBundleService
     {
         if (currentFilter == null)
             return null;
-    	StringBuilder sb = new StringBuilder(currentFilter);
-    	if (versionRange != null)
-    		if (versionRange.length() > 0)
-		{
-			sb.insert(0, "(&");
-			if ((versionRange.contains(",")) || (versionRange.contains("[")) || (versionRange.contains("]")) || (versionRange.contains("(")) || (versionRange.contains(")")))
-	        {
-                // There has to be better code in the osgi framework that will parse ranges like [1.2.3)
-			    StringTokenizer st = new StringTokenizer(versionRange, ",");
-			    while (st.hasMoreTokens())
-			    {
-			        String range = st.nextToken();
-                    if (range.startsWith("["))
-                        sb.append("(version>=").append(range.substring(1) + ")");
-                    if (range.startsWith("("))
-                        sb.append("(version>").append(range.substring(1) + ")");
-                    if (range.endsWith("]"))
-                        sb.append("(version<=").append(range.substring(0, range.length() - 1) + ")");
-                    if (range.endsWith(")"))
-                        sb.append("(version<=").append(range.substring(0, range.length() - 1) + ")");
-			    }
-	        }
-	        else
-	        {
-                if (versionRange.indexOf('.') == -1)
-                    sb.append("(version=" + versionRange + ")");
-                else
-                {
-    	            try {  // Standard practice is to match major from minor
-    	                Version v = new Version(versionRange);
-    	                sb.append("(version>=").append(v.getMajor()).append('.').append(v.getMinor()).append(".0)");
-    	                sb.append("(version<").append(v.getMajor()+1).append(")");
-    	            } catch (IllegalArgumentException e) {
-    	                e.printStackTrace();
-    	            }
-    	        }
-	    	}
-			sb.append(')');
-		}
-    	return sb.toString();
+        return VersionRange.parse(versionRange).addToFilter(currentFilter);
     }
     /**
      * Get the package name of this class name.
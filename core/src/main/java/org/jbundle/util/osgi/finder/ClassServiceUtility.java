@@ -3,10 +3,8 @@
  */
 package org.jbundle.util.osgi.finder;
 
-import java.io.ByteArrayInputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.ObjectInputStream;
+import java.lang.ref.WeakReference;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.util.Locale;
@@ -14,6 +12,8 @@ import java.util.MissingResourceException;
 import java.util.ResourceBundle;
 
 import org.jbundle.util.osgi.ClassService;
+import org.jbundle.util.osgi.codec.ClassResolver;
+import org.jbundle.util.osgi.codec.ObjectCodecs;
 
 
 /**
@@ -33,6 +33,27 @@ public class ClassServiceUtility
         super();
     }
 
+    /**
+     * Resource URL cache property (maximum entries).
+     */
+    public static final String RESOURCE_URL_CACHE_SIZE_PARAM = "jbundle.resource.url.size";
+    public static final int DEFAULT_RESOURCE_URL_CACHE_SIZE = 5000;
+    /**
+     * Resource URL miss cache property (time to live in ms).
+     */
+    public static final String RESOURCE_URL_MISS_TTL_PARAM = "jbundle.resource.url.miss.ttl";
+    public static final long DEFAULT_RESOURCE_URL_MISS_TTL = 30 * 1000;
+    /**
+     * (file path, code base, version, class loader) to the resource URL.
+     * The class finder sizes these caches from the framework properties when it starts (see setResourceURLCacheSize).
+     */
+    protected static volatile BoundedCache<ResourceURLKey, URL> resourceURLCache = new BoundedCache<ResourceURLKey, URL>(DEFAULT_RESOURCE_URL_CACHE_SIZE, 0);
+    /**
+     * The resources that were not found (these expire, since a resource can show up without a bundle event,
+     * ie., from a code base or a repository).
+     */
+    protected static volatile BoundedCache<ResourceURLKey, Boolean> resourceURLMissCache = new BoundedCache<ResourceURLKey, Boolean>(DEFAULT_RESOURCE_URL_CACHE_SIZE, DEFAULT_RESOURCE_URL_MISS_TTL);
+
     static ClassService classService = null;
     public static ClassService getClassService()
     {
@@ -131,6 +152,7 @@ public class ClassServiceUtility
     }
     /**
      * Create this object given the class name.
+     * The results are cached until a bundle changes (the misses also expire).
      * @param filepath
      * @return
      */
@@ -139,6 +161,29 @@ public class ClassServiceUtility
         if (filepath == null)
             return null;
 
+        ResourceURLKey key = new ResourceURLKey(filepath, urlCodeBase, version, classLoader);
+        BoundedCache<ResourceURLKey, URL> cache = resourceURLCache;
+        BoundedCache<ResourceURLKey, Boolean> missCache = resourceURLMissCache;
+        URL url = cache.get(key);
+        if (url != null)
+            return url;
+        if (missCache.get(key) != null)
+            return null;
+
+        url = this.lookupResourceURL(filepath, urlCodeBase, version, classLoader);
+        if (url != null)
+            cache.put(key, url);
+        else
+            missCache.put(key, Boolean.TRUE);
+        return url;
+    }
+    /**
+     * Find this resource (the class loader, then the class finder, then the code base).
+     * @param filepath
+     * @return The url or null if not found.
+     */
+    protected URL lookupResourceURL(String filepath, URL urlCodeBase, String version, ClassLoader classLoader)
+    {
         boolean isResource = true;
         if (urlCodeBase != null)
         	if ("file".equalsIgnoreCase(urlCodeBase.getProtocol()))
@@ -209,7 +254,9 @@ public class ClassServiceUtility
     }
     /**
      * Convert this encoded string back to a Java Object.
-     * TODO This is expensive, I need to synchronize and use a static writer.
+     * The string can be from any registered codec (or a plain serialization stream).
+     * The classes that aren't visible are found (and deployed) by the class finder as they are read,
+     * so the string is decoded once no matter how many bundles the objects come from.
      * @param string The string to convert.
      * @return The java object.
      */
@@ -220,29 +267,25 @@ public class ClassServiceUtility
 
         Object object  = null;
         try {
-            InputStream reader = new ByteArrayInputStream(string.getBytes(OBJECT_ENCODING));//Constants.STRING_ENCODING));
-            ObjectInputStream inStream = new ObjectInputStream(reader);
-            object = inStream.readObject();
-            reader.close();
-            inStream.close();
-        } catch (ClassNotFoundException e) {
-            if (this.getClassFinder(null) != null)
-            {
-                String className = null;
-                int startClass = e.getMessage().indexOf('\'') + 1;
-                int endClass = e.getMessage().indexOf('\'', startClass);
-                if (endClass != -1)
-                    className = e.getMessage().substring(startClass, endClass);
-                object = this.getClassFinder(null).findConvertStringToObject(className, version, string);	// Try to find this class in the obr repos
-            }
-            if (object == null)
-                throw e;
+            object = ObjectCodecs.decodeString(string, this.getClassResolver(version));
         } catch (IOException e) {
             e.printStackTrace();    // Never
         }
 
         return object;
     }
+    /**
+     * Get the resolver for the classes the default class loader can't see.
+     * @param version Version range
+     * @return The resolver (null if there is no class finder).
+     */
+    public ClassResolver getClassResolver(String version)
+    {
+        org.jbundle.util.osgi.ClassFinder classFinder = this.getClassFinder(null);
+        if (classFinder == null)
+            return null;
+        return new FinderClassResolver(classFinder, version);
+    }
     /**
      * Get the bundle classloader for this package.
      * @param string The class name to find the bundle for.
@@ -328,6 +371,39 @@ public class ClassServiceUtility
             this.getClassFinder(null).shutdownService(service);   // Shutdown the bundle for this service
     }
 
+    /**
+     * Replace the resource URL caches with caches of this size.
+     * @param maxEntries Maximum number of entries in each cache
+     * @param missTimeToLive Time to keep a miss in ms (0 = until the cache is cleared)
+     */
+    public static void setResourceURLCacheSize(int maxEntries, long missTimeToLive)
+    {
+        resourceURLCache = new BoundedCache<ResourceURLKey, URL>(maxEntries, 0);
+        resourceURLMissCache = new BoundedCache<ResourceURLKey, Boolean>(maxEntries, missTimeToLive);
+    }
+    /**
+     * Clear the resource URL cache.
+     * Call this when a bundle changes (a resource may have been added or removed).
+     */
+    public static void clearResourceURLCache()
+    {
+        resourceURLCache.clear();
+        resourceURLMissCache.clear();
+    }
+    /**
+     * Get the resource URL cache counters.
+     */
+    public static CacheStats getResourceURLCacheStats()
+    {
+        return resourceURLCache.getStats();
+    }
+    /**
+     * Get the resource URL miss cache counters.
+     */
+    public static CacheStats getResourceURLMissCacheStats()
+    {
+        return resourceURLMissCache.getStats();
+    }
     /**
      * Log this message.
      * @param context
@@ -341,4 +417,57 @@ public class ClassServiceUtility
         // TODO Use system logging!
         return false;
     }
+
+    /**
+     * A resource URL lookup key.
+     */
+    protected static final class ResourceURLKey
+    {
+        protected final String filepath;
+        protected final String codeBase;
+        protected final String version;
+        /**
+         * The class loader is held weakly (so the cache doesn't keep an uninstalled bundle's loader alive).
+         */
+        protected final WeakReference<ClassLoader> classLoader;
+        protected final int hash;
+
+        public ResourceURLKey(String filepath, URL urlCodeBase, String version, ClassLoader classLoader)
+        {
+            this.filepath = filepath;
+            this.codeBase = (urlCodeBase != null) ? urlCodeBase.toExternalForm() : null;   // URL.equals does name lookups
+            this.version = version;
+            this.classLoader = (classLoader != null) ? new WeakReference<ClassLoader>(classLoader) : null;
+            int hash = filepath.hashCode();
+            hash = 31 * hash + ((codeBase == null) ? 0 : codeBase.hashCode());
+            hash = 31 * hash + ((version == null) ? 0 : version.hashCode());
+            this.hash = 31 * hash + System.identityHashCode(classLoader);
+        }
+        @Override
+        public int hashCode()
+        {
+            return hash;
+        }
+        @Override
+        public boolean equals(Object obj)
+        {
+            if (!(obj instanceof ResourceURLKey))
+                return false;
+            ResourceURLKey key = (ResourceURLKey)obj;
+            return (filepath.equals(key.filepath))
+                && ((codeBase == null) ? (key.codeBase == null) : codeBase.equals(key.codeBase))
+                && ((version == null) ? (key.version == null) : version.equals(key.version))
+                && (ResourceURLKey.sameClassLoader(classLoader, key.classLoader));
+        }
+        /**
+         * Same class loader (a collected class loader never matches)?
+         */
+        private static boolean sameClassLoader(WeakReference<ClassLoader> classLoader1, WeakReference<ClassLoader> classLoader2)
+        {
+            if ((classLoader1 == null) || (classLoader2 == null))
+                return (classLoader1 == classLoader2);
+            ClassLoader loader = classLoader1.get();
+            return (loader != null) && (loader == classLoader2.get());
+        }
+    }
 }
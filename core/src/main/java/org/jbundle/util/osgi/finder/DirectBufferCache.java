@@ -0,0 +1,246 @@
+/*
+ * Copyright © 2012 jbundle.org. All rights reserved.
+ */
+package org.jbundle.util.osgi.finder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.net.URLConnection;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * DirectBufferCache - A (least recently used) cache of resource contents in direct (off-heap) buffers,
+ * bounded by the total number of bytes.
+ * The contents are keyed by bundle id, bundle revision, and entry path.
+ * Callers get a read-only view of the cached buffer, so the contents are never copied once they are loaded.
+ * @author don
+ *
+ */
+public class DirectBufferCache
+{
+    /**
+     * Maximum total bytes.
+     */
+    protected final long maxBytes;
+    /**
+     * Largest entry to cache (larger contents are returned, but not cached).
+     */
+    protected final int maxEntryBytes;
+    /**
+     * Current total bytes (synchronize on the map).
+     */
+    protected long totalBytes = 0;
+    /**
+     * The entries in access order (synchronize on the map).
+     */
+    protected final LinkedHashMap<ContentKey, ByteBuffer> map = new LinkedHashMap<ContentKey, ByteBuffer>(16, 0.75f, true);
+    /**
+     * Counters.
+     */
+    protected final CacheStats stats = new CacheStats();
+
+    /**
+     * Constructor.
+     * @param maxBytes Maximum total bytes
+     * @param maxEntryBytes Largest entry to cache
+     */
+    public DirectBufferCache(long maxBytes, int maxEntryBytes)
+    {
+        super();
+        this.maxBytes = maxBytes;
+        this.maxEntryBytes = maxEntryBytes;
+    }
+    /**
+     * Get the cached contents.
+     * @return A read-only view of the contents or null if they are not cached.
+     */
+    public ByteBuffer get(long bundleId, long revision, String path)
+    {
+        ByteBuffer buffer = null;
+        synchronized (map)
+        {
+            buffer = map.get(new ContentKey(bundleId, revision, path));
+        }
+        if (buffer == null)
+        {
+            stats.recordMiss();
+            return null;
+        }
+        stats.recordHit();
+        return buffer.asReadOnlyBuffer();
+    }
+    /**
+     * Read the contents of this url (and cache them).
+     * @return A read-only view of the contents.
+     * @throws IOException If the contents can't be read
+     */
+    public ByteBuffer load(long bundleId, long revision, String path, URL url)
+        throws IOException
+    {
+        ByteBuffer buffer = DirectBufferCache.read(url, maxEntryBytes);
+        if (buffer.isDirect())
+        {
+            ContentKey key = new ContentKey(bundleId, revision, path);
+            synchronized (map)
+            {
+                ByteBuffer oldBuffer = map.put(key, buffer);
+                if (oldBuffer != null)
+                    totalBytes -= oldBuffer.capacity();
+                totalBytes += buffer.capacity();
+                Iterator<ByteBuffer> iterator = map.values().iterator();
+                while ((totalBytes > maxBytes) && (iterator.hasNext()))
+                {   // Least recently used first
+                    totalBytes -= iterator.next().capacity();
+                    iterator.remove();
+                    stats.recordEviction();
+                }
+            }
+        }
+        return buffer.asReadOnlyBuffer();
+    }
+    /**
+     * Remove this bundle's contents (it was updated or uninstalled).
+     */
+    public void removeBundle(long bundleId)
+    {
+        synchronized (map)
+        {
+            Iterator<Map.Entry<ContentKey, ByteBuffer>> iterator = map.entrySet().iterator();
+            while (iterator.hasNext())
+            {
+                Map.Entry<ContentKey, ByteBuffer> entry = iterator.next();
+                if (entry.getKey().bundleId == bundleId)
+                {
+                    totalBytes -= entry.getValue().capacity();
+                    iterator.remove();
+                    stats.recordEviction();
+                }
+            }
+        }
+    }
+    /**
+     * Remove all the contents.
+     * Note: The direct memory is freed when the buffers (and the views handed out) are garbage collected.
+     */
+    public void clear()
+    {
+        synchronized (map)
+        {
+            map.clear();
+            totalBytes = 0;
+        }
+    }
+    /**
+     * Get the total bytes cached.
+     */
+    public long getTotalBytes()
+    {
+        synchronized (map)
+        {
+            return totalBytes;
+        }
+    }
+    /**
+     * Get the counters.
+     */
+    public CacheStats getStats()
+    {
+        return stats;
+    }
+    /**
+     * Read the contents of this url.
+     * @param maxDirectBytes Contents larger than this are read into a heap buffer (and not cached)
+     * @return The contents (flipped, ready to read).
+     */
+    public static ByteBuffer read(URL url, int maxDirectBytes)
+        throws IOException
+    {
+        URLConnection connection = url.openConnection();
+        int length = connection.getContentLength();
+        InputStream stream = connection.getInputStream();
+        try {
+            if ((length >= 0) && (length <= maxDirectBytes))
+            {   // Read straight into the direct buffer
+                ByteBuffer buffer = ByteBuffer.allocateDirect(length);
+                ReadableByteChannel channel = Channels.newChannel(stream);
+                while ((buffer.hasRemaining()) && (channel.read(buffer) != -1))
+                {
+                    // Keep reading
+                }
+                int next = buffer.hasRemaining() ? -1 : stream.read();
+                if ((!buffer.hasRemaining()) && (next == -1))
+                {
+                    buffer.flip();
+                    return buffer;
+                }
+                buffer.flip();      // Length was wrong, read the rest the slow way
+                byte[] data = new byte[buffer.remaining() + (next == -1 ? 0 : 1)];
+                buffer.get(data, 0, buffer.remaining());
+                if (next != -1)
+                    data[data.length - 1] = (byte)next;
+                return DirectBufferCache.read(data, stream, maxDirectBytes);
+            }
+            return DirectBufferCache.read(new byte[0], stream, maxDirectBytes);
+        } finally {
+            stream.close();
+        }
+    }
+    private static ByteBuffer read(byte[] start, InputStream stream, int maxDirectBytes)
+        throws IOException
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(Math.max(start.length, 8192));
+        out.write(start);
+        byte[] data = new byte[8192];
+        int count = 0;
+        while ((count = stream.read(data)) != -1)
+        {
+            out.write(data, 0, count);
+        }
+        data = out.toByteArray();
+        if (data.length > maxDirectBytes)
+            return ByteBuffer.wrap(data);   // Too big to cache
+        ByteBuffer buffer = ByteBuffer.allocateDirect(data.length);
+        buffer.put(data);
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * A (bundle id, bundle revision, entry path) key.
+     */
+    protected static final class ContentKey
+    {
+        protected final long bundleId;
+        protected final long revision;
+        protected final String path;
+
+        public ContentKey(long bundleId, long revision, String path)
+        {
+            this.bundleId = bundleId;
+            this.revision = revision;
+            this.path = path;
+        }
+        @Override
+        public int hashCode()
+        {
+            int hash = path.hashCode();
+            hash = 31 * hash + (int)(bundleId ^ (bundleId >>> 32));
+            return 31 * hash + (int)(revision ^ (revision >>> 32));
+        }
+        @Override
+        public boolean equals(Object obj)
+        {
+            if (!(obj instanceof ContentKey))
+                return false;
+            ContentKey key = (ContentKey)obj;
+            return (bundleId == key.bundleId) && (revision == key.revision) && (path.equals(key.path));
+        }
+    }
+}
@@ -0,0 +1,384 @@
+/*
+ * Copyright © 2012 jbundle.org. All rights reserved.
+ */
+package org.jbundle.util.osgi.finder;
+
+import java.util.ArrayList;
+import java.util.Dictionary;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.BundleEvent;
+import org.osgi.framework.Constants;
+import org.osgi.framework.SynchronousBundleListener;
+import org.osgi.framework.Version;
+
+/**
+ * ExportPackageIndex - Index of package name to the installed bundles that export it.
+ * The index is built once from the installed bundles, then kept current by listening
+ * to bundle events, so lookups never have to walk the bundles or re-parse their headers.
+ * There is one index per framework.
+ *
+ * @author don
+ *
+ */
+public class ExportPackageIndex
+	implements SynchronousBundleListener
+{
+    /**
+     * One index per framework (keyed by the system bundle).
+     */
+    protected static Map<Bundle, ExportPackageIndex> indexes = new HashMap<Bundle, ExportPackageIndex>();
+
+    /**
+     * The context I am listening with.
+     */
+    protected BundleContext context = null;
+    /**
+     * Package name to the bundles that export it (in bundle id order).
+     * Note: The arrays are never changed once they are in the map.
+     */
+    protected Map<String, ExportedPackage[]> packageMap = new ConcurrentHashMap<String, ExportedPackage[]>();
+    /**
+     * Bundle symbolic name to the installed bundles with that name.
+     */
+    protected Map<String, Bundle[]> symbolicNameMap = new ConcurrentHashMap<String, Bundle[]>();
+    /**
+     * Bundle id to the packages that bundle exports (so I can remove them).
+     */
+    protected Map<Long, String[]> bundlePackages = new HashMap<Long, String[]>();
+
+    /**
+     * Constructor.
+     */
+    protected ExportPackageIndex(BundleContext context)
+    {
+        super();
+        this.context = context;
+    }
+    /**
+     * Get the package index for this framework, building it if this is the first call.
+     * @param context Any bundle context in the framework
+     * @return The index or null if there is no context
+     */
+    public static ExportPackageIndex getIndex(BundleContext context)
+    {
+        if (context == null)
+            return null;
+        Bundle systemBundle = context.getBundle(0);
+        synchronized (indexes)
+        {
+            ExportPackageIndex index = indexes.get(systemBundle);
+            if (index == null)
+            {
+                BundleContext systemContext = (systemBundle != null) ? systemBundle.getBundleContext() : null;
+                if (systemContext == null)
+                    systemContext = context;    // Lifetime is the same as the calling bundle
+                index = new ExportPackageIndex(systemContext);
+                index.open();
+                indexes.put(systemBundle, index);
+            }
+            return index;
+        }
+    }
+    /**
+     * Remove the index for this framework (and stop listening).
+     * Call this when the bundle that uses the index stops, so the listener doesn't outlive the bundle.
+     * @param context Any bundle context in the framework
+     */
+    public static void closeIndex(BundleContext context)
+    {
+        if (context == null)
+            return;
+        ExportPackageIndex index = null;
+        synchronized (indexes)
+        {
+            index = indexes.remove(context.getBundle(0));
+        }
+        if (index != null)
+            index.close();
+    }
+    /**
+     * Start listening and index the bundles that are already installed.
+     * Note: The listener is added first so no bundle change is missed while I index.
+     */
+    public void open()
+    {
+        context.addBundleListener(this);
+        Bundle[] bundles = context.getBundles();
+        if (bundles != null)
+            for (Bundle bundle : bundles)
+        {
+            this.addBundle(bundle);
+        }
+    }
+    /**
+     * Stop listening and clear the index.
+     */
+    public void close()
+    {
+        try {
+            context.removeBundleListener(this);
+        } catch (IllegalStateException e) {
+            // Context is already invalid
+        }
+        synchronized (this)
+        {
+            packageMap.clear();
+            symbolicNameMap.clear();
+            bundlePackages.clear();
+        }
+    }
+    /**
+     * Keep the index current.
+     */
+    @Override
+    public void bundleChanged(BundleEvent event)
+    {
+        Bundle bundle = event.getBundle();
+        switch (event.getType())
+        {
+        case BundleEvent.INSTALLED:
+        case BundleEvent.RESOLVED:
+        case BundleEvent.UNRESOLVED:
+        case BundleEvent.UPDATED:
+            this.removeBundle(bundle);  // The headers may have changed
+            this.addBundle(bundle);
+            break;
+        case BundleEvent.UNINSTALLED:
+            this.removeBundle(bundle);
+            break;
+        case BundleEvent.STOPPING:
+            if (bundle.getBundleId() == 0)
+            {   // Framework is shutting down
+                synchronized (indexes)
+                {
+                    indexes.remove(bundle);
+                }
+                BundleServiceIndex.closeIndex(context);
+                this.close();
+            }
+            break;
+        default:
+            break;
+        }
+    }
+    /**
+     * Find the currently installed bundle that exports this package.
+     * If more than one bundle matches, the last one installed is returned.
+     * @param packageName The package name
+     * @param versionRange The (bundle) version range
+     * @return The bundle or null if not found
+     */
+    public Bundle findBundle(String packageName, String versionRange)
+    {
+        if (packageName == null)
+            return null;
+        ExportedPackage[] exports = packageMap.get(packageName);
+        if (exports == null)
+            return null;
+        VersionRange range = VersionRange.parse(versionRange);
+        for (int i = exports.length - 1; i >= 0; i--)
+        {
+            if (range.includes(exports[i].bundleVersion))
+                return exports[i].bundle;
+        }
+        return null;
+    }
+    /**
+     * Get the installed bundles with this symbolic name.
+     * @param symbolicName The bundle symbolic name
+     * @return The bundles (empty if none)
+     */
+    public Bundle[] getBundles(String symbolicName)
+    {
+        Bundle[] bundles = null;
+        if (symbolicName != null)
+            bundles = symbolicNameMap.get(symbolicName);
+        return (bundles != null) ? bundles : EMPTY_BUNDLES;
+    }
+    public static final Bundle[] EMPTY_BUNDLES = new Bundle[0];
+    /**
+     * Add this bundle's exports to the index.
+     * @param bundle
+     */
+    protected synchronized void addBundle(Bundle bundle)
+    {
+        if (bundle.getState() == Bundle.UNINSTALLED)
+            return;
+        Dictionary<?, ?> dictionary = bundle.getHeaders();
+        String[] packages = ExportPackageIndex.parsePackageNames((String)dictionary.get(Constants.EXPORT_PACKAGE));
+        Version bundleVersion = null;
+        try {
+            bundleVersion = Version.parseVersion((String)dictionary.get(Constants.BUNDLE_VERSION));
+        } catch (IllegalArgumentException e) {
+            bundleVersion = Version.emptyVersion;   // Weird version
+        }
+        ExportedPackage export = new ExportedPackage(bundle, bundleVersion);
+        for (String packageName : packages)
+        {
+            packageMap.put(packageName, ExportPackageIndex.add(packageMap.get(packageName), export));
+        }
+        bundlePackages.put(bundle.getBundleId(), packages);
+
+        String symbolicName = bundle.getSymbolicName();
+        if (symbolicName != null)
+        {
+            Bundle[] bundles = symbolicNameMap.get(symbolicName);
+            Bundle[] newBundles = new Bundle[bundles == null ? 1 : bundles.length + 1];
+            if (bundles != null)
+                System.arraycopy(bundles, 0, newBundles, 0, bundles.length);
+            newBundles[newBundles.length - 1] = bundle;
+            symbolicNameMap.put(symbolicName, newBundles);
+        }
+    }
+    /**
+     * Remove this bundle's exports from the index.
+     * @param bundle
+     */
+    protected synchronized void removeBundle(Bundle bundle)
+    {
+        String[] packages = bundlePackages.remove(bundle.getBundleId());
+        if (packages != null)
+            for (String packageName : packages)
+        {
+            ExportedPackage[] exports = ExportPackageIndex.remove(packageMap.get(packageName), bundle);
+            if (exports == null)
+                packageMap.remove(packageName);
+            else
+                packageMap.put(packageName, exports);
+        }
+        String symbolicName = bundle.getSymbolicName();
+        if (symbolicName != null)
+        {
+            Bundle[] bundles = symbolicNameMap.get(symbolicName);
+            if (bundles != null)
+            {
+                List<Bundle> list = new ArrayList<Bundle>();
+                for (Bundle b : bundles)
+                {
+                    if (b.getBundleId() != bundle.getBundleId())
+                        list.add(b);
+                }
+                if (list.size() == 0)
+                    symbolicNameMap.remove(symbolicName);
+                else
+                    symbolicNameMap.put(symbolicName, list.toArray(new Bundle[list.size()]));
+            }
+        }
+    }
+    /**
+     * Add this export to the array (keeping bundle id order).
+     */
+    private static ExportedPackage[] add(ExportedPackage[] exports, ExportedPackage export)
+    {
+        if (exports == null)
+            return new ExportedPackage[] {export};
+        int insert = exports.length;
+        while ((insert > 0) && (exports[insert - 1].bundle.getBundleId() > export.bundle.getBundleId()))
+            insert--;
+        ExportedPackage[] newExports = new ExportedPackage[exports.length + 1];
+        System.arraycopy(exports, 0, newExports, 0, insert);
+        newExports[insert] = export;
+        System.arraycopy(exports, insert, newExports, insert + 1, exports.length - insert);
+        return newExports;
+    }
+    /**
+     * Remove this bundle's export from the array.
+     * @return The new array or null if it is empty.
+     */
+    private static ExportedPackage[] remove(ExportedPackage[] exports, Bundle bundle)
+    {
+        if (exports == null)
+            return null;
+        List<ExportedPackage> list = new ArrayList<ExportedPackage>(exports.length);
+        for (ExportedPackage export : exports)
+        {
+            if (export.bundle.getBundleId() != bundle.getBundleId())
+                list.add(export);
+        }
+        if (list.size() == 0)
+            return null;
+        return list.toArray(new ExportedPackage[list.size()]);
+    }
+    /**
+     * Get the package names from this Export-Package (or Import-Package) header.
+     * ie., com.a;com.b;version="[1.0,2.0)";uses:="com.c,com.d",com.e
+     * returns {com.a, com.b, com.e}
+     * @param header The manifest header
+     * @return The package names (never null)
+     */
+    public static String[] parsePackageNames(String header)
+    {
+        return ExportPackageIndex.parsePackageNames(header, true);
+    }
+    /**
+     * Get the package names from this Import-Package (or Export-Package) header.
+     * @param header The manifest header
+     * @param includeOptional Include the packages with the resolution:=optional directive?
+     * @return The package names (never null)
+     */
+    public static String[] parsePackageNames(String header, boolean includeOptional)
+    {
+        if ((header == null) || (header.length() == 0))
+            return EMPTY_PACKAGES;
+        List<String> packages = new ArrayList<String>();
+        List<String> clausePackages = new ArrayList<String>();
+        boolean optional = false;
+        int length = header.length();
+        int start = 0;
+        boolean inQuote = false;
+        boolean inParams = false;   // Past the package names for this clause
+        for (int i = 0; i <= length; i++)
+        {
+            char chr = (i < length) ? header.charAt(i) : ',';
+            if (chr == '\"')
+                inQuote = !inQuote;
+            if (inQuote)
+                continue;
+            if ((chr == ';') || (chr == ','))
+            {
+                String name = header.substring(start, i).trim();
+                if ((inParams) || (name.indexOf('=') != -1))
+                {
+                    inParams = true;    // Attribute or directive
+                    if (name.replace(" ", "").replace("\"", "").equals(OPTIONAL_DIRECTIVE))
+                        optional = true;
+                }
+                else if (name.length() > 0)
+                    clausePackages.add(name);
+                start = i + 1;
+                if (chr == ',')
+                {   // Next clause
+                    if ((includeOptional) || (!optional))
+                        packages.addAll(clausePackages);
+                    clausePackages.clear();
+                    inParams = false;
+                    optional = false;
+                }
+            }
+        }
+        return packages.toArray(new String[packages.size()]);
+    }
+    public static final String OPTIONAL_DIRECTIVE = Constants.RESOLUTION_DIRECTIVE + ":=" + Constants.RESOLUTION_OPTIONAL;
+    public static final String[] EMPTY_PACKAGES = new String[0];
+
+    /**
+     * A package export (the bundle and the version to match).
+     */
+    protected static class ExportedPackage
+    {
+        protected final Bundle bundle;
+        protected final Version bundleVersion;
+
+        public ExportedPackage(Bundle bundle, Version bundleVersion)
+        {
+            this.bundle = bundle;
+            this.bundleVersion = bundleVersion;
+        }
+    }
+}
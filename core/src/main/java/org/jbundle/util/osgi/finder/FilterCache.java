@@ -0,0 +1,160 @@
+/*
+ * Copyright © 2012 jbundle.org. All rights reserved.
+ */
+package org.jbundle.util.osgi.finder;
+
+import java.util.Arrays;
+import java.util.Dictionary;
+import java.util.Enumeration;
+
+import org.jbundle.util.osgi.BundleService;
+import org.osgi.framework.Constants;
+import org.osgi.framework.Filter;
+import org.osgi.framework.FrameworkUtil;
+import org.osgi.framework.InvalidSyntaxException;
+
+/**
+ * FilterCache - Cache of compiled service filters.
+ * A filter is built and parsed once for each (interface, package name, filter properties, version range).
+ * 
+ * @author don
+ *
+ */
+public class FilterCache
+{
+    public static final int MAX_FILTERS = 2000;
+
+    protected static final BoundedCache<FilterKey, Filter> filters = new BoundedCache<FilterKey, Filter>(MAX_FILTERS, 0);
+
+    /**
+     * Get the compiled filter for this service lookup.
+     * @param interfaceName The interface (objectClass) the service was registered under (null for any)
+     * @param packageName The package name property (null for any)
+     * @param filter Other properties that must match (null if none)
+     * @param versionRange The version range (null for any)
+     * @return The filter or null if the filter is not valid.
+     */
+    public static Filter getFilter(String interfaceName, String packageName, Dictionary<String, String> filter, String versionRange)
+    {
+        FilterKey key = new FilterKey(interfaceName, packageName, filter, versionRange);
+        Filter compiledFilter = filters.get(key);
+        if (compiledFilter == null)
+        {
+            String serviceFilter = FilterCache.getFilterString(interfaceName, packageName, key.properties, versionRange);
+            try {
+                compiledFilter = FrameworkUtil.createFilter(serviceFilter);
+            } catch (InvalidSyntaxException e) {
+                e.printStackTrace();
+                return null;
+            }
+            filters.put(key, compiledFilter);
+        }
+        return compiledFilter;
+    }
+    /**
+     * Build the ldap filter string for this service lookup.
+     * @param properties The other properties as key, value pairs.
+     */
+    public static String getFilterString(String interfaceName, String packageName, String[] properties, String versionRange)
+    {
+        String serviceFilter = ClassServiceUtility.addToFilter(null, Constants.OBJECTCLASS, interfaceName);
+        serviceFilter = ClassServiceUtility.addToFilter(serviceFilter, BundleService.PACKAGE_NAME, packageName);
+        if (properties != null)
+            for (int i = 0; i < properties.length; i = i + 2)
+        {
+            serviceFilter = ClassServiceUtility.addToFilter(serviceFilter, properties[i], properties[i + 1]);
+        }
+        if (serviceFilter == null)
+            serviceFilter = "(" + Constants.OBJECTCLASS + "=*)";
+        return ClassFinderActivator.addVersionFilter(serviceFilter, versionRange);
+    }
+    /**
+     * Get the counters.
+     */
+    public static CacheStats getStats()
+    {
+        return filters.getStats();
+    }
+    /**
+     * Remove all the filters.
+     */
+    public static void clear()
+    {
+        filters.clear();
+    }
+
+    /**
+     * The filter lookup key.
+     */
+    protected static final class FilterKey
+    {
+        protected final String interfaceName;
+        protected final String packageName;
+        protected final String[] properties;  // key, value pairs (sorted by key)
+        protected final String versionRange;
+        private final int hashCode;
+
+        public FilterKey(String interfaceName, String packageName, Dictionary<String, String> filter, String versionRange)
+        {
+            this.interfaceName = interfaceName;
+            this.packageName = packageName;
+            this.properties = FilterKey.getProperties(filter);
+            this.versionRange = versionRange;
+            int hash = (interfaceName == null) ? 0 : interfaceName.hashCode();
+            hash = 31 * hash + ((packageName == null) ? 0 : packageName.hashCode());
+            hash = 31 * hash + ((properties == null) ? 0 : Arrays.hashCode(properties));
+            hash = 31 * hash + ((versionRange == null) ? 0 : versionRange.hashCode());
+            this.hashCode = hash;
+        }
+        /**
+         * Get the filter properties (except the interface) as sorted key, value pairs.
+         */
+        private static String[] getProperties(Dictionary<String, String> filter)
+        {
+            if ((filter == null) || (filter.size() == 0))
+                return null;
+            String[] keys = new String[filter.size()];
+            int count = 0;
+            Enumeration<String> enumeration = filter.keys();
+            while (enumeration.hasMoreElements())
+            {
+                String key = enumeration.nextElement();
+                if (!key.equals(BundleService.INTERFACE))
+                    keys[count++] = key;
+            }
+            if (count == 0)
+                return null;
+            Arrays.sort(keys, 0, count);
+            String[] properties = new String[count * 2];
+            for (int i = 0; i < count; i++)
+            {
+                properties[i * 2] = keys[i];
+                properties[i * 2 + 1] = filter.get(keys[i]);
+            }
+            return properties;
+        }
+        @Override
+        public int hashCode()
+        {
+            return hashCode;
+        }
+        @Override
+        public boolean equals(Object obj)
+        {
+            if (obj == this)
+                return true;
+            if (!(obj instanceof FilterKey))
+                return false;
+            FilterKey key = (FilterKey)obj;
+            return (hashCode == key.hashCode)
+                && (equals(interfaceName, key.interfaceName))
+                && (equals(packageName, key.packageName))
+                && (Arrays.equals(properties, key.properties))
+                && (equals(versionRange, key.versionRange));
+        }
+        private static boolean equals(String string1, String string2)
+        {
+            return (string1 == null) ? (string2 == null) : string1.equals(string2);
+        }
+    }
+}
@@ -0,0 +1,46 @@
+/*
+ * Copyright © 2012 jbundle.org. All rights reserved.
+ */
+package org.jbundle.util.osgi.finder;
+
+import org.jbundle.util.osgi.ClassFinder;
+import org.jbundle.util.osgi.codec.ClassResolver;
+
+/**
+ * FinderClassResolver - Resolve the classes in a decoded stream with the class finder.
+ * The finder deploys the bundle for a class that isn't installed yet, so a stream whose
+ * objects come from several bundles is decoded in one pass.
+ * @author don
+ *
+ */
+public class FinderClassResolver
+    implements ClassResolver
+{
+    protected ClassFinder classFinder = null;
+
+    protected String versionRange = null;
+
+    /**
+     * Constructor.
+     * @param classFinder The class finder
+     * @param versionRange The version range for the classes
+     */
+    public FinderClassResolver(ClassFinder classFinder, String versionRange)
+    {
+        super();
+        this.classFinder = classFinder;
+        this.versionRange = versionRange;
+    }
+    /**
+     * Find this class (deploying its bundle if it isn't installed).
+     */
+    @Override
+    public Class<?> resolveClass(String className)
+        throws ClassNotFoundException
+    {
+        Class<?> c = classFinder.findClass(className, versionRange);
+        if (c == null)
+            throw new ClassNotFoundException(className);
+        return c;
+    }
+}
@@ -0,0 +1,300 @@
+/*
+ * Copyright © 2012 jbundle.org. All rights reserved.
+ */
+package org.jbundle.util.osgi.finder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.Version;
+
+/**
+ * FinderSnapshot - Saves the finder's class entry index to the bundle's data area, so a warm restart
+ * doesn't have to scan the bundles again.
+ * The snapshot is written at shutdown (and at intervals if it changed) and read (memory-mapped) at startup.
+ * The file has a format version and a checksum; a bundle's entries are only restored if the bundle
+ * has the same location and last modified time as when it was indexed, so a changed bundle is re-indexed.
+ * <pre>
+ * int magic, int format version, long time written, int payload length, long payload crc32,
+ * payload: int bundle count, then for each bundle:
+ *   long bundle id, string location, long last modified, string version, int package count,
+ *   then for each package: string package name, int class count, string class name...
+ * (strings are an int length and utf-8 bytes)
+ * </pre>
+ *
+ * @author don
+ *
+ */
+public class FinderSnapshot
+{
+    public static final int MAGIC = 0x4A424649;     // JBFI
+    public static final int FORMAT_VERSION = 1;
+    public static final int HEADER_LENGTH = 4 + 4 + 8 + 4 + 8;
+    /**
+     * Snapshot file name (in the bundle's data area).
+     */
+    public static final String SNAPSHOT_FILE = "finder-index.dat";
+
+    protected static final Charset UTF8 = Charset.forName("UTF-8");
+
+    protected File file = null;
+
+    protected ClassEntryIndex classEntryIndex = null;
+    /**
+     * Index change count when the snapshot was last read or written.
+     */
+    protected int savedModCount = -1;
+
+    protected ScheduledExecutorService timer = null;
+
+    /**
+     * Constructor.
+     * @param file The snapshot file
+     * @param classEntryIndex The index to save and restore
+     */
+    public FinderSnapshot(File file, ClassEntryIndex classEntryIndex)
+    {
+        super();
+        this.file = file;
+        this.classEntryIndex = classEntryIndex;
+    }
+    /**
+     * Get the snapshot for this bundle (in the bundle's data area).
+     * @return The snapshot or null if the framework has no file system support.
+     */
+    public static FinderSnapshot getSnapshot(BundleContext context, ClassEntryIndex classEntryIndex)
+    {
+        File file = context.getDataFile(SNAPSHOT_FILE);
+        if (file == null)
+            return null;
+        return new FinderSnapshot(file, classEntryIndex);
+    }
+    /**
+     * Restore the index from the snapshot.
+     * A snapshot that is missing, from another format version, or corrupt is ignored.
+     * @param context The bundle context (to validate the bundles)
+     * @return The number of bundles restored.
+     */
+    public int load(BundleContext context)
+    {
+        if (!file.isFile())
+            return 0;
+        int count = 0;
+        try {
+            RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+            try {
+                FileChannel channel = randomAccessFile.getChannel();
+                MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                if (!FinderSnapshot.isValid(buffer))
+                    return 0;
+                buffer.position(HEADER_LENGTH);
+                int bundles = buffer.getInt();
+                for (int i = 0; i < bundles; i++)
+                {
+                    ClassEntryIndex.BundleClasses classes = FinderSnapshot.readBundle(buffer, context);
+                    if ((classes != null) && (classEntryIndex.restoreBundle(classes)))
+                        count++;
+                }
+            } finally {
+                randomAccessFile.close();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        } catch (BufferUnderflowException e) {
+            return count;   // Checksum matched, but the contents are bad
+        } catch (IllegalArgumentException e) {
+            return count;
+        }
+        savedModCount = classEntryIndex.getModCount();
+        return count;
+    }
+    /**
+     * Is this a snapshot in my format with a good checksum?
+     */
+    public static boolean isValid(ByteBuffer buffer)
+    {
+        if (buffer.limit() < HEADER_LENGTH)
+            return false;
+        if ((buffer.getInt(0) != MAGIC) || (buffer.getInt(4) != FORMAT_VERSION))
+            return false;
+        int length = buffer.getInt(16);
+        if ((length < 4) || (length != buffer.limit() - HEADER_LENGTH))
+            return false;
+        CRC32 crc = new CRC32();
+        ByteBuffer payload = buffer.duplicate();
+        payload.position(HEADER_LENGTH);
+        crc.update(payload);
+        return crc.getValue() == buffer.getLong(20);
+    }
+    /**
+     * Read one bundle's entries.
+     * @return The entries or null if the bundle is not installed (or is a different bundle now).
+     */
+    private static ClassEntryIndex.BundleClasses readBundle(ByteBuffer buffer, BundleContext context)
+    {
+        long bundleId = buffer.getLong();
+        String location = FinderSnapshot.readString(buffer);
+        long lastModified = buffer.getLong();
+        Version bundleVersion = Version.parseVersion(FinderSnapshot.readString(buffer));
+        int packageCount = FinderSnapshot.readCount(buffer);
+        String[] packageNames = new String[packageCount];
+        String[][] classNames = new String[packageCount][];
+        for (int i = 0; i < packageCount; i++)
+        {
+            packageNames[i] = FinderSnapshot.readString(buffer);
+            classNames[i] = new String[FinderSnapshot.readCount(buffer)];
+            for (int j = 0; j < classNames[i].length; j++)
+            {
+                classNames[i][j] = FinderSnapshot.readString(buffer);
+            }
+        }
+        Bundle bundle = context.getBundle(bundleId);
+        if ((bundle == null) || (!location.equals(bundle.getLocation())))
+            return null;
+        return new ClassEntryIndex.BundleClasses(bundle, lastModified, bundleVersion, packageNames, classNames);
+    }
+    private static int readCount(ByteBuffer buffer)
+    {
+        int count = buffer.getInt();
+        if ((count < 0) || (count > buffer.remaining()))
+            throw new IllegalArgumentException("Bad count: " + count);
+        return count;
+    }
+    private static String readString(ByteBuffer buffer)
+    {
+        byte[] bytes = new byte[FinderSnapshot.readCount(buffer)];
+        buffer.get(bytes);
+        return new String(bytes, UTF8);
+    }
+    /**
+     * Write the snapshot (if the index changed since it was read or written).
+     * The file is written to a temporary file, then moved, so a crash never leaves a partial snapshot.
+     */
+    public synchronized void save()
+    {
+        int modCount = classEntryIndex.getModCount();
+        if (modCount == savedModCount)
+            return;
+        try {
+            List<ClassEntryIndex.BundleClasses> bundles = classEntryIndex.getIndexedBundles();
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(bundles.size());
+            for (ClassEntryIndex.BundleClasses classes : bundles)
+            {
+                FinderSnapshot.writeBundle(out, classes);
+            }
+            out.flush();
+            byte[] payload = bytes.toByteArray();
+            CRC32 crc = new CRC32();
+            crc.update(payload);
+
+            File tempFile = new File(file.getPath() + ".tmp");
+            DataOutputStream fileOut = new DataOutputStream(new FileOutputStream(tempFile));
+            try {
+                fileOut.writeInt(MAGIC);
+                fileOut.writeInt(FORMAT_VERSION);
+                fileOut.writeLong(System.currentTimeMillis());
+                fileOut.writeInt(payload.length);
+                fileOut.writeLong(crc.getValue());
+                fileOut.write(payload);
+            } finally {
+                fileOut.close();
+            }
+            try {
+                Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+            savedModCount = modCount;
+        } catch (IOException e) {
+            e.printStackTrace();
+        } catch (IllegalStateException e) {
+            // Bundle was uninstalled while I was writing; try again next time
+        }
+    }
+    private static void writeBundle(DataOutputStream out, ClassEntryIndex.BundleClasses classes)
+        throws IOException
+    {
+        Bundle bundle = classes.getBundle();
+        out.writeLong(bundle.getBundleId());
+        FinderSnapshot.writeString(out, bundle.getLocation());
+        out.writeLong(classes.getLastModified());
+        FinderSnapshot.writeString(out, classes.getBundleVersion().toString());
+        String[] packageNames = classes.getPackageNames();
+        String[][] classNames = classes.getClassNames();
+        out.writeInt(packageNames.length);
+        for (int i = 0; i < packageNames.length; i++)
+        {
+            FinderSnapshot.writeString(out, packageNames[i]);
+            out.writeInt(classNames[i].length);
+            for (String name : classNames[i])
+            {
+                FinderSnapshot.writeString(out, name);
+            }
+        }
+    }
+    private static void writeString(DataOutputStream out, String string)
+        throws IOException
+    {
+        byte[] bytes = string.getBytes(UTF8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+    /**
+     * Save the snapshot at this interval (if it changed).
+     * @param intervalMs The interval (0 = only save when I am closed)
+     */
+    public synchronized void schedule(long intervalMs)
+    {
+        if ((intervalMs <= 0) || (timer != null))
+            return;
+        timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable runnable)
+            {
+                Thread thread = new Thread(runnable, "FinderSnapshot");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        timer.scheduleWithFixedDelay(new Runnable() {
+            public void run()
+            {
+                save();
+            }
+        }, intervalMs, intervalMs, TimeUnit.MILLISECONDS);
+    }
+    /**
+     * Stop the timer and save the snapshot.
+     */
+    public void close()
+    {
+        synchronized (this)
+        {
+            if (timer != null)
+                timer.shutdownNow();
+            timer = null;
+        }
+        this.save();
+    }
+}
@@ -0,0 +1,81 @@
+/*
+ * Copyright © 2012 jbundle.org. All rights reserved.
+ */
+package org.jbundle.util.osgi.finder;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * InFlightCalls - Coalesce concurrent calls for the same key.
+ * The first thread to ask for a key runs the call; threads that ask for the same key
+ * while it is running wait for (and share) that result instead of running it again.
+ * @author don
+ *
+ * @param <K> The key
+ * @param <V> The result
+ */
+public class InFlightCalls<K, V>
+{
+    protected final ConcurrentMap<K, FutureTask<V>> calls = new ConcurrentHashMap<K, FutureTask<V>>();
+
+    /**
+     * Constructor.
+     */
+    public InFlightCalls()
+    {
+        super();
+    }
+    /**
+     * Run this call, or wait for the same call that is already running.
+     * @param key The call key
+     * @param call The call to run if this key is not already running
+     * @return The call's result
+     * @throws RuntimeException If the call threw an exception (checked exceptions are wrapped)
+     */
+    public V execute(K key, Callable<V> call)
+    {
+        FutureTask<V> task = new FutureTask<V>(call);
+        FutureTask<V> runningTask = calls.putIfAbsent(key, task);
+        if (runningTask == null)
+        {   // I'm the first, do the work
+            runningTask = task;
+            try {
+                task.run();
+            } finally {
+                calls.remove(key, task);
+            }
+        }
+        boolean interrupted = false;
+        try {
+            while (true)
+            {
+                try {
+                    return runningTask.get();
+                } catch (InterruptedException e) {
+                    interrupted = true;     // Keep waiting, the result is shared
+                }
+            }
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException)
+                throw (RuntimeException)cause;
+            if (cause instanceof Error)
+                throw (Error)cause;
+            throw new RuntimeException(cause);
+        } finally {
+            if (interrupted)
+                Thread.currentThread().interrupt();
+        }
+    }
+    /**
+     * Get the number of calls currently running.
+     */
+    public int size()
+    {
+        return calls.size();
+    }
+}
@@ -0,0 +1,201 @@
+/*
+ * Copyright © 2012 jbundle.org. All rights reserved.
+ */
+package org.jbundle.util.osgi.finder;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.util.List;
+import java.util.Locale;
+import java.util.PropertyResourceBundle;
+import java.util.ResourceBundle;
+
+import org.jbundle.util.osgi.BundleService;
+import org.osgi.framework.Bundle;
+
+/**
+ * ResourceBundleLoader - Load (properties) resource bundles from a bundle, the way
+ * ResourceBundle.getBundle does: each candidate locale (ie., base_de_CH, base_de, base) is looked up
+ * and the bundles that are found are linked as parents.
+ * The results are cached by base name, locale, and bundle revision (the bundle's last modified time),
+ * and a bundle's entries are removed when it is updated or uninstalled.
+ *
+ * @author don
+ *
+ */
+public class ResourceBundleLoader
+{
+    /**
+     * Cached when there is no resource bundle for a locale.
+     */
+    protected static final Object NOT_FOUND = new Object();
+
+    protected final ResourceBundle.Control control = ResourceBundle.Control.getNoFallbackControl(ResourceBundle.Control.FORMAT_PROPERTIES);
+
+    protected final BoundedCache<BundleKey, Object> cache;
+
+    /**
+     * Constructor.
+     * @param maxEntries Maximum number of cached (base name, locale) entries
+     */
+    public ResourceBundleLoader(int maxEntries)
+    {
+        super();
+        cache = new BoundedCache<BundleKey, Object>(maxEntries, 0);
+    }
+    /**
+     * Get the resource bundle for this locale from this bundle.
+     * @param bundle The bundle with the properties files
+     * @param baseName The resource bundle base name (ie., com.a.Resources)
+     * @param locale The locale (null = the base bundle)
+     * @return The resource bundle (linked to its parents) or null if there isn't one.
+     */
+    public ResourceBundle getBundle(Bundle bundle, String baseName, Locale locale)
+    {
+        return this.getBundle(bundle, null, baseName, locale);
+    }
+    /**
+     * Get the resource bundle for this locale from this bundle service.
+     * @param bundle The service's bundle (the cache key)
+     * @param bundleService The service used to find the properties files (null = use the bundle)
+     * @param baseName The resource bundle base name (ie., com.a.Resources)
+     * @param locale The locale (null = the base bundle)
+     * @return The resource bundle (linked to its parents) or null if there isn't one.
+     */
+    public ResourceBundle getBundle(Bundle bundle, BundleService bundleService, String baseName, Locale locale)
+    {
+        if (locale == null)
+            locale = Locale.ROOT;
+        BundleKey key = new BundleKey(baseName, locale, bundle.getBundleId(), bundle.getLastModified());
+        Object resourceBundle = cache.get(key);
+        if (resourceBundle == null)
+        {
+            List<Locale> candidates = control.getCandidateLocales(baseName, locale);    // Most specific first
+            ResourceBundle parent = null;
+            if (candidates.size() > 1)
+                parent = this.getBundle(bundle, bundleService, baseName, candidates.get(1));   // Cached, so the parents are shared
+            LinkedPropertyResourceBundle child = this.loadBundle(bundle, bundleService, control.toBundleName(baseName, candidates.get(0)));
+            if (child != null)
+            {
+                child.setParent(parent);
+                resourceBundle = child;
+            }
+            else
+                resourceBundle = (parent != null) ? parent : NOT_FOUND;
+            cache.put(key, resourceBundle);
+        }
+        return (resourceBundle != NOT_FOUND) ? (ResourceBundle)resourceBundle : null;
+    }
+    /**
+     * Load this properties file from the bundle (or the bundle service, so getResource can be overridden).
+     * @param bundleName The resource bundle name (ie., com.a.Resources_de)
+     * @return The resource bundle or null if the bundle doesn't have it.
+     */
+    protected LinkedPropertyResourceBundle loadBundle(Bundle bundle, BundleService bundleService, String bundleName)
+    {
+        String path = control.toResourceName(bundleName, "properties");
+        URL url = null;
+        if (bundleService != null)
+            url = bundleService.getResource(path);
+        else
+            url = bundle.getResource(path);
+        if ((url == null) && (bundleService == null))
+            url = bundle.getEntry(path);    // Not resolved
+        if (url == null)
+            return null;
+        InputStream stream = null;
+        try {
+            stream = url.openStream();
+            return new LinkedPropertyResourceBundle(stream);
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            try {
+                if (stream != null)
+                    stream.close();
+            } catch (IOException e) {
+                // Ignore
+            }
+        }
+        return null;
+    }
+    /**
+     * Remove this bundle's resource bundles (it was updated or uninstalled).
+     */
+    public void removeBundle(final long bundleId)
+    {
+        cache.removeAll(new BoundedCache.EntryFilter<BundleKey, Object>() {
+            public boolean accept(BundleKey key, Object value)
+            {
+                return key.bundleId == bundleId;
+            }
+        });
+    }
+    /**
+     * Remove all the cached resource bundles.
+     */
+    public void clear()
+    {
+        cache.clear();
+    }
+    /**
+     * Get the counters.
+     */
+    public CacheStats getStats()
+    {
+        return cache.getStats();
+    }
+
+    /**
+     * A properties resource bundle whose parent can be set.
+     */
+    public static class LinkedPropertyResourceBundle extends PropertyResourceBundle
+    {
+        public LinkedPropertyResourceBundle(InputStream stream)
+            throws IOException
+        {
+            super(stream);
+        }
+        @Override
+        public void setParent(ResourceBundle parent)
+        {
+            super.setParent(parent);
+        }
+    }
+    /**
+     * A (base name, locale, bundle revision) cache key.
+     */
+    protected static final class BundleKey
+    {
+        protected final String baseName;
+        protected final Locale locale;
+        protected final long bundleId;
+        protected final long lastModified;
+
+        public BundleKey(String baseName, Locale locale, long bundleId, long lastModified)
+        {
+            this.baseName = baseName;
+            this.locale = locale;
+            this.bundleId = bundleId;
+            this.lastModified = lastModified;
+        }
+        @Override
+        public int hashCode()
+        {
+            int hash = baseName.hashCode();
+            hash = 31 * hash + locale.hashCode();
+            hash = 31 * hash + (int)(bundleId ^ (bundleId >>> 32));
+            return 31 * hash + (int)(lastModified ^ (lastModified >>> 32));
+        }
+        @Override
+        public boolean equals(Object obj)
+        {
+            if (!(obj instanceof BundleKey))
+                return false;
+            BundleKey key = (BundleKey)obj;
+            return (bundleId == key.bundleId) && (lastModified == key.lastModified)
+                && (baseName.equals(key.baseName)) && (locale.equals(key.locale));
+        }
+    }
+}
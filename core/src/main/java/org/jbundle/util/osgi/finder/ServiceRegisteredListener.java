@@ -7,6 +7,12 @@ import org.osgi.framework.BundleContext;
 import org.osgi.framework.ServiceEvent;
 import org.osgi.framework.ServiceListener;
 
+/**
+ * ServiceRegisteredListener - Notify this thread when a service is registered.
+ * @author don
+ * @deprecated Use StartupTracker.whenServiceRegistered.
+ */
+@Deprecated
 public class ServiceRegisteredListener implements ServiceListener
 {
     BundleContext context = null;
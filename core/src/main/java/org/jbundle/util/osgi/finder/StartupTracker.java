@@ -0,0 +1,448 @@
+/*
+ * Copyright © 2012 jbundle.org. All rights reserved.
+ */
+package org.jbundle.util.osgi.finder;
+
+import java.util.ArrayList;
+import java.util.Dictionary;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.jbundle.util.osgi.BundleService;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.BundleEvent;
+import org.osgi.framework.Constants;
+import org.osgi.framework.Filter;
+import org.osgi.framework.InvalidSyntaxException;
+import org.osgi.framework.ServiceEvent;
+import org.osgi.framework.ServiceListener;
+import org.osgi.framework.ServiceReference;
+import org.osgi.framework.SynchronousBundleListener;
+
+/**
+ * StartupTracker - Futures that complete when a service is registered or a bundle is started.
+ * One service listener and one bundle listener per framework dispatch to all the waiters.
+ * A waiter is added before the current state is checked, so a registration or start
+ * that happens while the waiter is being set up is never missed.
+ * 
+ * @author don
+ *
+ */
+@SuppressWarnings("rawtypes")
+public class StartupTracker
+	implements ServiceListener, SynchronousBundleListener
+{
+    /**
+     * One tracker per framework (keyed by the system bundle).
+     */
+    protected static Map<Bundle, StartupTracker> trackers = new HashMap<Bundle, StartupTracker>();
+
+    /**
+     * Completes the futures that time out.
+     */
+    protected static ScheduledThreadPoolExecutor timer = null;
+
+    protected BundleContext context = null;
+    /**
+     * Interface name to the service waiters (synchronize on this).
+     */
+    protected Map<String, List<ServiceWaiter>> serviceWaiters = new HashMap<String, List<ServiceWaiter>>();
+    /**
+     * Bundle id to the bundle start waiters (synchronize on this).
+     */
+    protected Map<Long, List<CompletableFuture<Bundle>>> bundleWaiters = new HashMap<Long, List<CompletableFuture<Bundle>>>();
+
+    /**
+     * Constructor.
+     */
+    protected StartupTracker(BundleContext context)
+    {
+        super();
+        this.context = context;
+    }
+    /**
+     * Get the startup tracker for this framework, starting it if this is the first call.
+     * @param context Any bundle context in the framework
+     * @return The tracker or null if there is no context
+     */
+    public static StartupTracker getTracker(BundleContext context)
+    {
+        if (context == null)
+            return null;
+        Bundle systemBundle = context.getBundle(0);
+        synchronized (trackers)
+        {
+            StartupTracker tracker = trackers.get(systemBundle);
+            if (tracker == null)
+            {
+                BundleContext systemContext = (systemBundle != null) ? systemBundle.getBundleContext() : null;
+                if (systemContext == null)
+                    systemContext = context;
+                tracker = new StartupTracker(systemContext);
+                tracker.open();
+                trackers.put(systemBundle, tracker);
+            }
+            return tracker;
+        }
+    }
+    /**
+     * Remove the tracker for this framework (cancelling its waiters).
+     * Call this when the bundle that uses the tracker stops, so the listeners don't outlive the bundle.
+     * @param context Any bundle context in the framework
+     */
+    public static void closeTracker(BundleContext context)
+    {
+        if (context == null)
+            return;
+        StartupTracker tracker = StartupTracker.removeTracker(context.getBundle(0));
+        if (tracker != null)
+            tracker.close();    // The waiters are cancelled, which cancels their timeouts
+    }
+    /**
+     * Remove the tracker for this framework.
+     * The timeout timer is shared by all the frameworks, so it is only stopped when the last tracker is removed.
+     * @param systemBundle The framework's system bundle
+     * @return The tracker or null if there isn't one.
+     */
+    protected static StartupTracker removeTracker(Bundle systemBundle)
+    {
+        synchronized (trackers)
+        {
+            StartupTracker tracker = trackers.remove(systemBundle);
+            if (trackers.isEmpty())
+            {
+                synchronized (StartupTracker.class)
+                {
+                    if (timer != null)
+                        timer.shutdownNow();
+                    timer = null;
+                }
+            }
+            return tracker;
+        }
+    }
+    /**
+     * Start listening.
+     */
+    public void open()
+    {
+        context.addServiceListener(this);
+        context.addBundleListener(this);
+    }
+    /**
+     * Stop listening and cancel the waiters.
+     */
+    public void close()
+    {
+        try {
+            context.removeServiceListener(this);
+            context.removeBundleListener(this);
+        } catch (IllegalStateException e) {
+            // Context is already invalid
+        }
+        List<CompletableFuture<?>> futures = new ArrayList<CompletableFuture<?>>();
+        synchronized (this)
+        {
+            for (List<ServiceWaiter> waiters : serviceWaiters.values())
+            {
+                for (ServiceWaiter waiter : waiters)
+                {
+                    futures.add(waiter.future);
+                }
+            }
+            for (List<CompletableFuture<Bundle>> waiters : bundleWaiters.values())
+            {
+                futures.addAll(waiters);
+            }
+            serviceWaiters.clear();
+            bundleWaiters.clear();
+        }
+        for (CompletableFuture<?> future : futures)
+        {
+            future.cancel(false);
+        }
+    }
+    /**
+     * Get a future that completes when this class's bundle service is registered.
+     * Note: The future completes immediately if the service is already registered.
+     * @param className The class name (that has the package that the object was registered under)
+     * @param versionRange Version range
+     * @param filter Other filters to use to find the service
+     * @return The future service reference.
+     */
+    public CompletableFuture<ServiceReference> whenServiceRegistered(String className, String versionRange, Dictionary<String, String> filter)
+    {
+        String interfaceName = null;
+        if (filter != null)
+            interfaceName = filter.get(BundleService.INTERFACE);
+        if (interfaceName == null)
+            interfaceName = className;
+        final ServiceWaiter waiter = new ServiceWaiter(interfaceName, ClassFinderActivator.getPackageName(className, true), filter, versionRange);
+        synchronized (this)
+        {
+            List<ServiceWaiter> waiters = serviceWaiters.get(interfaceName);
+            if (waiters == null)
+                serviceWaiters.put(interfaceName, waiters = new ArrayList<ServiceWaiter>());
+            waiters.add(waiter);
+        }
+        waiter.future.whenComplete((ref, ex) -> removeServiceWaiter(waiter));  // Timed out or cancelled
+        try {   // Now that I'm listening, make sure it didn't already register
+            ServiceReference[] refs = context.getServiceReferences(interfaceName, null);
+            if (refs != null)
+                for (ServiceReference ref : refs)
+            {
+                if (waiter.matches(ref))
+                {
+                    waiter.future.complete(ref);
+                    break;
+                }
+            }
+        } catch (InvalidSyntaxException e) {
+            e.printStackTrace();    // Never
+        }
+        return waiter.future;
+    }
+    /**
+     * Get a future that completes when this class's bundle service is registered and its bundle is active.
+     * Cancelling this future also cancels the service (or bundle) waiter it is waiting on.
+     * @param className The class name (that has the package that the object was registered under)
+     * @param versionRange Version range
+     * @param filter Other filters to use to find the service
+     * @return The future (service's) bundle.
+     */
+    public CompletableFuture<Bundle> whenServiceStarted(String className, String versionRange, Dictionary<String, String> filter)
+    {
+        final CompletableFuture<Bundle> future = new CompletableFuture<Bundle>();
+        final CompletableFuture<ServiceReference> registered = this.whenServiceRegistered(className, versionRange, filter);
+        future.whenComplete((bundle, ex) -> registered.cancel(false));  // (Does nothing if it is done)
+        registered.whenComplete((ref, ex) -> {
+            if (ex != null)
+            {
+                future.completeExceptionally(ex);
+                return;
+            }
+            final CompletableFuture<Bundle> started = whenBundleStarted(ref.getBundle());
+            future.whenComplete((bundle, ex2) -> started.cancel(false));
+            started.whenComplete((bundle, ex2) -> {
+                if (ex2 != null)
+                    future.completeExceptionally(ex2);
+                else
+                    future.complete(bundle);
+            });
+        });
+        return future;
+    }
+    /**
+     * Get a future that completes when this bundle is active.
+     * Note: The future completes immediately if the bundle is already active.
+     * @param bundle The bundle
+     * @return The future bundle.
+     */
+    public CompletableFuture<Bundle> whenBundleStarted(Bundle bundle)
+    {
+        final CompletableFuture<Bundle> future = new CompletableFuture<Bundle>();
+        final Long bundleId = bundle.getBundleId();
+        synchronized (this)
+        {
+            List<CompletableFuture<Bundle>> waiters = bundleWaiters.get(bundleId);
+            if (waiters == null)
+                bundleWaiters.put(bundleId, waiters = new ArrayList<CompletableFuture<Bundle>>());
+            waiters.add(future);
+        }
+        future.whenComplete((b, ex) -> removeBundleWaiter(bundleId, future));
+        if ((bundle.getState() & Bundle.ACTIVE) != 0)  // Now that I'm listening, make sure it didn't already start
+            future.complete(bundle);
+        return future;
+    }
+    /**
+     * A service changed, complete the waiters it matches.
+     */
+    @Override
+    public void serviceChanged(ServiceEvent event)
+    {
+        if ((event.getType() != ServiceEvent.REGISTERED) && (event.getType() != ServiceEvent.MODIFIED))
+            return;
+        ServiceReference ref = event.getServiceReference();
+        Object objectClass = ref.getProperty(Constants.OBJECTCLASS);
+        String[] interfaceNames = (objectClass instanceof String[]) ? (String[])objectClass : new String[] {(String)objectClass};
+        List<ServiceWaiter> matches = null;
+        synchronized (this)
+        {
+            for (String interfaceName : interfaceNames)
+            {
+                List<ServiceWaiter> waiters = serviceWaiters.get(interfaceName);
+                if (waiters != null)
+                    for (ServiceWaiter waiter : waiters)
+                {
+                    if (waiter.matches(ref))
+                    {
+                        if (matches == null)
+                            matches = new ArrayList<ServiceWaiter>();
+                        matches.add(waiter);
+                    }
+                }
+            }
+        }
+        if (matches != null)
+            for (ServiceWaiter waiter : matches)
+        {
+            waiter.future.complete(ref);    // Note: Complete outside the lock
+        }
+    }
+    /**
+     * A bundle changed, complete the waiters for this bundle.
+     */
+    @Override
+    public void bundleChanged(BundleEvent event)
+    {
+        Bundle bundle = event.getBundle();
+        if (event.getType() == BundleEvent.STARTED)
+        {
+            List<CompletableFuture<Bundle>> waiters = null;
+            synchronized (this)
+            {
+                waiters = bundleWaiters.remove(bundle.getBundleId());
+            }
+            if (waiters != null)
+                for (CompletableFuture<Bundle> future : waiters)
+            {
+                future.complete(bundle);
+            }
+        }
+        if (event.getType() == BundleEvent.STOPPING)
+            if (bundle.getBundleId() == 0)
+        {   // Framework is shutting down
+            StartupTracker.removeTracker(bundle);
+            this.close();
+        }
+    }
+    /**
+     * Remove this service waiter.
+     */
+    protected synchronized void removeServiceWaiter(ServiceWaiter waiter)
+    {
+        List<ServiceWaiter> waiters = serviceWaiters.get(waiter.interfaceName);
+        if (waiters != null)
+        {
+            waiters.remove(waiter);
+            if (waiters.isEmpty())
+                serviceWaiters.remove(waiter.interfaceName);
+        }
+    }
+    /**
+     * Remove this bundle waiter.
+     */
+    protected synchronized void removeBundleWaiter(Long bundleId, CompletableFuture<Bundle> future)
+    {
+        List<CompletableFuture<Bundle>> waiters = bundleWaiters.get(bundleId);
+        if (waiters != null)
+        {
+            waiters.remove(future);
+            if (waiters.isEmpty())
+                bundleWaiters.remove(bundleId);
+        }
+    }
+    /**
+     * Get the number of services and bundles being waited for.
+     */
+    public synchronized int getWaiterCount()
+    {
+        int count = 0;
+        for (List<ServiceWaiter> waiters : serviceWaiters.values())
+        {
+            count = count + waiters.size();
+        }
+        for (List<CompletableFuture<Bundle>> waiters : bundleWaiters.values())
+        {
+            count = count + waiters.size();
+        }
+        return count;
+    }
+    /**
+     * Complete this future with a TimeoutException if it is not done in time.
+     * The timeout is cancelled as soon as the future completes.
+     * @param future The future
+     * @param secsToWait Time to wait (-1 = default, 0 = don't time out)
+     * @return The same future
+     */
+    public static <T> CompletableFuture<T> timeout(final CompletableFuture<T> future, int secsToWait)
+    {
+        if (secsToWait == -1)
+            secsToWait = ClassFinderActivator.DEFAULT_SERVICE_WAIT_SECS;
+        if ((secsToWait > 0) && (!future.isDone()))
+        {
+            final ScheduledFuture<?> task = StartupTracker.getTimer().schedule(() -> future.completeExceptionally(new TimeoutException()), secsToWait, TimeUnit.SECONDS);
+            future.whenComplete((value, ex) -> task.cancel(false));
+        }
+        return future;
+    }
+    /**
+     * Get the timer for the timeouts.
+     */
+    protected static synchronized ScheduledThreadPoolExecutor getTimer()
+    {
+        if (timer == null)
+        {
+            timer = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+                public Thread newThread(Runnable runnable)
+                {
+                    Thread thread = new Thread(runnable, "StartupTracker timer");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            timer.setRemoveOnCancelPolicy(true);    // Don't keep the cancelled timeouts until they would have fired
+        }
+        return timer;
+    }
+
+    /**
+     * Waiting for a service.
+     */
+    protected static class ServiceWaiter
+    {
+        protected final String interfaceName;
+        protected final String packageName;
+        protected final Dictionary<String, String> filter;
+        protected final String versionRange;
+        protected final CompletableFuture<ServiceReference> future = new CompletableFuture<ServiceReference>();
+
+        public ServiceWaiter(String interfaceName, String packageName, Dictionary<String, String> filter, String versionRange)
+        {
+            this.interfaceName = interfaceName;
+            this.packageName = packageName;
+            this.filter = filter;
+            this.versionRange = versionRange;
+        }
+        /**
+         * Does this service match what I'm waiting for?
+         * Note: Services that are not registered with a package name (such as the ClassFinder) only have to match the interface.
+         */
+        public boolean matches(ServiceReference ref)
+        {
+            if (!BundleServiceIndex.isInterfaceMatch(ref, interfaceName))
+                return false;
+            Object servicePackage = ref.getProperty(BundleService.PACKAGE_NAME);
+            if (servicePackage != null)
+                if (!servicePackage.toString().equals(packageName))
+                    return false;
+            if (!BundleServiceIndex.isPropertyMatch(ref, filter))
+                return false;
+            if ((versionRange != null) && (versionRange.length() > 0))
+            {
+                Filter versionFilter = FilterCache.getFilter(null, null, null, versionRange);
+                if ((versionFilter == null) || (!versionFilter.match(ref)))
+                    return false;
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,259 @@
+/*
+ * Copyright © 2012 jbundle.org. All rights reserved.
+ */
+package org.jbundle.util.osgi.finder;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.osgi.framework.Version;
+
+/**
+ * VersionRange - A parsed, immutable version range.
+ * Use parse to get a (shared) range, then includes to match versions without any allocation.
+ * <p/>A range is one of:
+ * <br/>[1.2.3,2.0.0) - Standard osgi interval (either end may be inclusive or exclusive; the ceiling is optional).
+ * <br/>1.2.3 - Sloppy match: this exact version, or the same major and at least this minor version (standard practice).
+ * <br/>null or empty - Any version.
+ * <br/>Anything that can't be parsed matches any version.
+ * 
+ * @author don
+ *
+ */
+public final class VersionRange
+{
+    public static final int ANY = 0;
+    public static final int SLOPPY = 1;
+    public static final int INTERVAL = 2;
+    public static final int INVALID = 3;
+
+    public static final VersionRange ANY_VERSION = new VersionRange(null, ANY, null, false, null, false);
+
+    /**
+     * Parsed ranges by their string form.
+     */
+    protected static final Map<String, VersionRange> ranges = new ConcurrentHashMap<String, VersionRange>();
+    public static final int MAX_CACHED_RANGES = 1024;
+
+    private final String range;
+    private final int mode;
+    private final Version floor;
+    private final boolean floorInclusive;
+    private final Version ceiling;
+    private final boolean ceilingInclusive;
+    private final String filter;
+
+    /**
+     * Constructor.
+     */
+    private VersionRange(String range, int mode, Version floor, boolean floorInclusive, Version ceiling, boolean ceilingInclusive)
+    {
+        super();
+        this.range = range;
+        this.mode = mode;
+        this.floor = floor;
+        this.floorInclusive = floorInclusive;
+        this.ceiling = ceiling;
+        this.ceilingInclusive = ceilingInclusive;
+        this.filter = this.buildFilter(VERSION);  // The usual attribute, so it is only built once
+    }
+    /**
+     * Get the parsed version range for this string.
+     * @param range The version range string
+     * @return The (shared) version range (never null)
+     */
+    public static VersionRange parse(String range)
+    {
+        if ((range == null) || (range.length() == 0))
+            return ANY_VERSION;
+        VersionRange versionRange = ranges.get(range);
+        if (versionRange == null)
+        {
+            versionRange = VersionRange.create(range);
+            if (ranges.size() >= MAX_CACHED_RANGES)
+                ranges.clear();     // Never (unless the ranges are generated)
+            ranges.put(range, versionRange);
+        }
+        return versionRange;
+    }
+    /**
+     * Parse this version range string.
+     * @param range The version range string
+     * @return The new version range
+     */
+    private static VersionRange create(String range)
+    {
+        String string = range.trim();
+        try {
+            if ((string.indexOf(',') == -1)
+                && (string.indexOf('[') == -1) && (string.indexOf(']') == -1)
+                && (string.indexOf('(') == -1) && (string.indexOf(')') == -1))
+                    return new VersionRange(range, SLOPPY, new Version(string), true, null, false);
+
+            String floorString = string;
+            String ceilingString = null;
+            int comma = string.indexOf(',');
+            if (comma != -1)
+            {
+                floorString = string.substring(0, comma).trim();
+                ceilingString = string.substring(comma + 1).trim();
+            }
+            else if ((string.endsWith("]")) || (string.endsWith(")")))
+                if ((!string.startsWith("[")) && (!string.startsWith("(")))
+            {   // Ceiling only
+                floorString = null;
+                ceilingString = string;
+            }
+
+            Version floor = null;
+            boolean floorInclusive = true;
+            if ((floorString != null) && (floorString.length() > 0))
+            {
+                if ((floorString.startsWith("[")) || (floorString.startsWith("(")))
+                {
+                    floorInclusive = (floorString.charAt(0) == '[');
+                    floorString = floorString.substring(1).trim();
+                }
+                if (floorString.length() > 0)
+                    floor = new Version(floorString);
+            }
+            Version ceiling = null;
+            boolean ceilingInclusive = true;
+            if ((ceilingString != null) && (ceilingString.length() > 0))
+            {
+                if ((ceilingString.endsWith("]")) || (ceilingString.endsWith(")")))
+                {
+                    ceilingInclusive = (ceilingString.charAt(ceilingString.length() - 1) == ']');
+                    ceilingString = ceilingString.substring(0, ceilingString.length() - 1).trim();
+                }
+                if (ceilingString.length() > 0)
+                    ceiling = new Version(ceilingString);
+            }
+            return new VersionRange(range, INTERVAL, floor, floorInclusive, ceiling, ceilingInclusive);
+        } catch (IllegalArgumentException e) {
+            return new VersionRange(range, INVALID, null, false, null, false);    // Weird version = okay?
+        }
+    }
+    /**
+     * Does this range include this version?
+     * @param version The version (null matches only the any range)
+     * @return True if it is a valid version
+     */
+    public boolean includes(Version version)
+    {
+        switch (mode)
+        {
+        case SLOPPY:
+            if (version == null)
+                return false;
+            if (floor.equals(version))
+                return true;
+            // HACK HACK HACK - This code is for sloppy bundle definitions (standard practice okays major and minor match)
+            return ((version.getMajor() == floor.getMajor()) && (version.getMinor() >= floor.getMinor()));
+        case INTERVAL:
+            if (version == null)
+                return false;
+            if (floor != null)
+            {
+                int compare = version.compareTo(floor);
+                if ((compare < 0) || ((compare == 0) && (!floorInclusive)))
+                    return false;
+            }
+            if (ceiling != null)
+            {
+                int compare = version.compareTo(ceiling);
+                if ((compare > 0) || ((compare == 0) && (!ceilingInclusive)))
+                    return false;
+            }
+            return true;
+        case ANY:
+        case INVALID:
+        default:
+            return true;
+        }
+    }
+    /**
+     * Get the ldap filter terms for this range.
+     * ie., [1.2.0,2.0.0) returns (version>=1.2.0)(!(version>=2.0.0))
+     * @param attribute The version attribute name (usually version)
+     * @return The filter terms (an empty string if every version matches)
+     */
+    public String getFilter(String attribute)
+    {
+        if (VERSION.equals(attribute))
+            return filter;
+        return this.buildFilter(attribute);
+    }
+    /**
+     * Build the ldap filter terms for this range.
+     * @param attribute The version attribute name
+     * @return The filter terms
+     */
+    private String buildFilter(String attribute)
+    {
+        StringBuilder sb = new StringBuilder();
+        switch (mode)
+        {
+        case SLOPPY:   // Standard practice is to match major from minor
+            sb.append('(').append(attribute).append(">=").append(floor.getMajor()).append('.').append(floor.getMinor()).append(".0)");
+            sb.append("(!(").append(attribute).append(">=").append(floor.getMajor() + 1).append(".0.0))");
+            break;
+        case INTERVAL:
+            if (floor != null)
+            {
+                if (floorInclusive)
+                    sb.append('(').append(attribute).append(">=").append(floor).append(')');
+                else
+                    sb.append("(!(").append(attribute).append("<=").append(floor).append("))");
+            }
+            if (ceiling != null)
+            {
+                if (ceilingInclusive)
+                    sb.append('(').append(attribute).append("<=").append(ceiling).append(')');
+                else
+                    sb.append("(!(").append(attribute).append(">=").append(ceiling).append("))");
+            }
+            break;
+        default:
+            break;
+        }
+        return sb.toString();
+    }
+    public static final String VERSION = "version";
+    /**
+     * Add the terms for this range to this ldap filter.
+     * ie., (package=org.jibx.runtime) returns (&(package=org.jibx.runtime)(version>=1.2.0)(!(version>=2.0.0)))
+     * @param currentFilter The current filter
+     * @return The new filter
+     */
+    public String addToFilter(String currentFilter)
+    {
+        if (currentFilter == null)
+            return null;
+        String terms = this.getFilter(VERSION);
+        if (terms.length() == 0)
+            return currentFilter;
+        return "(&" + currentFilter + terms + ")";
+    }
+    /**
+     * Get the match mode.
+     * @return ANY, SLOPPY, INTERVAL, or INVALID
+     */
+    public int getMode()
+    {
+        return mode;
+    }
+    public Version getFloor()
+    {
+        return floor;
+    }
+    public Version getCeiling()
+    {
+        return ceiling;
+    }
+    @Override
+    public String toString()
+    {
+        return (range == null) ? "" : range;
+    }
+}
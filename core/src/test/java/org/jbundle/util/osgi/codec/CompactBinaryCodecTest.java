@@ -0,0 +1,228 @@
+/*
+ * Copyright © 2012 jbundle.org. All rights reserved.
+ */
+package org.jbundle.util.osgi.codec;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.junit.Test;
+
+/**
+ * CompactBinaryCodecTest - Round trip object graphs through the compact codec.
+ * @author don
+ *
+ */
+public class CompactBinaryCodecTest
+{
+    /**
+     * Encode and decode this object with the compact codec.
+     */
+    @SuppressWarnings("unchecked")
+    public static <T> T roundTrip(T object)
+        throws IOException, ClassNotFoundException
+    {
+        byte[] data = CompactBinaryCodec.INSTANCE.encode(object);
+        assertEquals(ObjectCodecs.CODEC_HEADER, data[0]);
+        assertEquals(CompactBinaryCodec.CODEC_ID, data[1]);
+        return (T)ObjectCodecs.decode(data, null);
+    }
+
+    @Test
+    public void testDefaultCodecIsJava()
+    {
+        if (System.getProperty(ObjectCodecs.CODEC_PARAM) == null)
+            assertSame(JavaSerializationCodec.INSTANCE, ObjectCodecs.getDefaultCodec());
+    }
+
+    @Test
+    public void testCycle()
+        throws Exception
+    {
+        Node first = new Node("first");
+        Node second = new Node("second");
+        first.next = second;
+        second.next = first;
+        Node node = CompactBinaryCodecTest.roundTrip(first);
+        assertEquals(CompactBinaryCodec.ClassSchema.OBJECT_KIND, CompactBinaryCodec.getSchema(Node.class).kind);    // Not embedded
+        assertEquals("first", node.name);
+        assertEquals("second", node.next.name);
+        assertSame(node, node.next.next);
+    }
+
+    @Test
+    public void testSharedReferences()
+        throws Exception
+    {
+        Node shared = new Node("shared");
+        List<Object> list = new ArrayList<Object>(Arrays.<Object>asList(shared, shared, new Object[] {shared}));
+        List<Object> copy = CompactBinaryCodecTest.roundTrip(list);
+        assertNotSame(shared, copy.get(0));
+        assertSame(copy.get(0), copy.get(1));
+        assertSame(copy.get(0), ((Object[])copy.get(2))[0]);
+    }
+
+    @Test
+    public void testCustomSerializationKeepsIdentity()
+        throws Exception
+    {
+        Parent parent = new Parent();
+        parent.children.add(new Child(parent, "a"));
+        parent.children.add(new Child(parent, "b"));
+        Parent copy = CompactBinaryCodecTest.roundTrip(parent);
+        assertEquals(2, copy.children.size());
+        assertSame(copy, copy.children.get(0).parent);
+        assertSame(copy, copy.children.get(1).parent);
+        assertEquals("a!", copy.children.get(0).name);  // Written by writeObject, read by readObject
+    }
+
+    @Test
+    public void testConstructorsAreNotRun()
+        throws Exception
+    {
+        Initialized object = new Initialized();
+        object.value = 7;
+        object.cache = 9;
+        int constructed = Initialized.constructed;
+        Initialized copy = CompactBinaryCodecTest.roundTrip(object);
+        assertEquals(CompactBinaryCodec.ClassSchema.OBJECT_KIND, CompactBinaryCodec.getSchema(Initialized.class).kind);
+        assertEquals(constructed, Initialized.constructed);
+        assertEquals(7, copy.value);
+        assertEquals(0, copy.cache);        // Transient, and the initializer is not run (same as java serialization)
+        assertEquals(1, copy.baseCount);    // The non-serializable superclass constructor is run
+    }
+
+    @Test
+    public void testContainers()
+        throws Exception
+    {
+        Map<String, Object> map = new HashMap<String, Object>();
+        map.put("list", new ArrayList<Integer>(Arrays.asList(1, 2, 3)));
+        map.put("set", new LinkedHashSet<String>(Arrays.asList("c", "a", "b")));
+        TreeMap<String, Long> treeMap = new TreeMap<String, Long>();
+        treeMap.put("b", 2L);
+        treeMap.put("a", -1L);
+        map.put("treeMap", treeMap);
+        map.put("ints", new int[] {1, -2, 300000});
+        map.put("date", new Date(1234567890L));
+        map.put("string", "été 中");
+        Map<String, Object> copy = CompactBinaryCodecTest.roundTrip(map);
+        assertEquals(map.keySet(), copy.keySet());
+        assertEquals(map.get("list"), copy.get("list"));
+        assertEquals(Arrays.asList("c", "a", "b"), new ArrayList<Object>((LinkedHashSet<?>)copy.get("set")));
+        assertEquals(treeMap, copy.get("treeMap"));
+        assertArrayEquals((int[])map.get("ints"), (int[])copy.get("ints"));
+        assertEquals(map.get("date"), copy.get("date"));
+        assertEquals(map.get("string"), copy.get("string"));
+    }
+
+    @Test
+    public void testEnums()
+        throws Exception
+    {
+        assertSame(Color.GREEN, CompactBinaryCodecTest.roundTrip(Color.GREEN));
+        Map<Color, String> enumMap = new EnumMap<Color, String>(Color.class);    // EnumMap has its own writeObject
+        enumMap.put(Color.RED, "red");
+        Map<Color, String> copy = CompactBinaryCodecTest.roundTrip(enumMap);
+        assertEquals(enumMap, copy);
+        List<Color> colors = CompactBinaryCodecTest.roundTrip(new ArrayList<Color>(Arrays.asList(Color.RED, Color.RED, Color.GREEN)));
+        assertSame(Color.RED, colors.get(1));
+    }
+
+    public static enum Color
+    {
+        RED, GREEN;
+    }
+
+    public static class Node
+        implements Serializable
+    {
+        private static final long serialVersionUID = 1L;
+
+        protected String name = null;
+        protected Node next = null;
+
+        public Node(String name)
+        {
+            this.name = name;
+        }
+    }
+
+    public static class Parent
+        implements Serializable
+    {
+        private static final long serialVersionUID = 1L;
+
+        protected List<Child> children = new ArrayList<Child>();
+    }
+
+    public static class Child
+        implements Serializable
+    {
+        private static final long serialVersionUID = 1L;
+
+        protected Parent parent = null;
+        protected String name = null;
+
+        public Child(Parent parent, String name)
+        {
+            this.parent = parent;
+            this.name = name;
+        }
+        private void writeObject(ObjectOutputStream out)
+            throws IOException
+        {
+            out.writeObject(parent);
+            out.writeUTF(name + "!");
+        }
+        private void readObject(ObjectInputStream in)
+            throws IOException, ClassNotFoundException
+        {
+            parent = (Parent)in.readObject();
+            name = in.readUTF();
+        }
+    }
+
+    public static class Base
+    {
+        protected int baseCount = 0;
+
+        public Base()
+        {
+            baseCount++;
+        }
+    }
+
+    public static class Initialized
+        extends Base
+        implements Serializable
+    {
+        private static final long serialVersionUID = 1L;
+
+        protected static int constructed = 0;
+
+        protected int value = 1;
+        protected transient int cache = 5;
+
+        public Initialized()
+        {
+            constructed++;
+        }
+    }
+}
@@ -3,16 +3,31 @@
  */
 package org.jbundle.util.osgi.obr;
 
-import org.apache.felix.bundlerepository.DataModelHelper;
+import java.io.File;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
 import org.apache.felix.bundlerepository.Reason;
 import org.apache.felix.bundlerepository.Repository;
 import org.apache.felix.bundlerepository.RepositoryAdmin;
-import org.apache.felix.bundlerepository.Requirement;
 import org.apache.felix.bundlerepository.Resolver;
 import org.apache.felix.bundlerepository.Resource;
+import org.jbundle.util.osgi.bundle.BundleStartupOrchestrator;
 import org.jbundle.util.osgi.finder.BaseClassFinderService;
+import org.jbundle.util.osgi.finder.CacheKey;
+import org.jbundle.util.osgi.finder.CacheStats;
 import org.jbundle.util.osgi.finder.ClassFinderActivator;
 import org.jbundle.util.osgi.finder.ClassServiceUtility;
+import org.jbundle.util.osgi.finder.InFlightCalls;
 import org.osgi.framework.Bundle;
 import org.osgi.framework.BundleActivator;
 import org.osgi.framework.BundleContext;
@@ -20,7 +35,6 @@ import org.osgi.framework.BundleException;
 import org.osgi.framework.Constants;
 import org.osgi.framework.InvalidSyntaxException;
 import org.osgi.framework.ServiceReference;
-import org.osgi.framework.Version;
 import org.osgi.service.log.LogService;
 
 /**
@@ -40,6 +54,29 @@ public class ObrClassFinderService extends BaseClassFinderService
     public static Boolean waitingForRepositoryAdmin = false;
     public static Boolean waitingForClassService = false;
 
+    /**
+     * The package deployments that are running now (by package and version range).
+     */
+    protected InFlightCalls<CacheKey, Resource> inFlightDeploys = new InFlightCalls<CacheKey, Resource>();
+    /**
+     * The packages in the repositories (so I don't have to search the repositories for each package).
+     */
+    protected RepositoryPackageIndex packageIndex = new RepositoryPackageIndex();
+    /**
+     * Repository url(s) to add at startup (comma separated).
+     */
+    public static final String REPOSITORY_URL_PARAM = "jbundle.repository.url";
+    /**
+     * Local copies of the repository descriptors (directory in my data area).
+     */
+    public static final String REPOSITORY_CACHE_DIRECTORY = "repositories";
+    protected RepositoryDescriptorCache descriptorCache = null;
+    /**
+     * The repositories in the repository admin (normalized url to the url).
+     * This is seeded with the admin's repositories when I start (addBootstrapRepository), so the ones added without me aren't added again.
+     */
+    protected Map<String, String> repositoryURLs = new ConcurrentHashMap<String, String>();
+
     /**
      * Bundle starting.
      * If the service listener is up, register me, else wait.
@@ -47,6 +84,9 @@ public class ObrClassFinderService extends BaseClassFinderService
     public void start(BundleContext context) throws Exception
     {
         super.start(context);
+        File directory = context.getDataFile(REPOSITORY_CACHE_DIRECTORY);
+        if (directory != null)  // Null if there is no file system support
+            descriptorCache = new RepositoryDescriptorCache(directory);
         repositoryAdmin = this.getRepositoryAdmin(context, this);
         
         if (repositoryAdmin != null)
@@ -81,7 +121,8 @@ public class ObrClassFinderService extends BaseClassFinderService
         return admin;
     }
     /**
-     * Add the standard obr repository, so I can get the bundles that I need.
+     * Add the standard obr repositories, so I can get the bundles that I need.
+     * The jbundle.repository.url property can have a comma separated list of repositories.
      * @param repositoryAdmin
      * @param context
      */
@@ -89,41 +130,131 @@ public class ObrClassFinderService extends BaseClassFinderService
     {
         if (repositoryAdmin == null)
             return;
-        String repository = context.getProperty("jbundle.repository.url");
+        this.addRepositoryKeys(repositoryAdmin);    // Once, so addRepository doesn't have to search the admin's list
+        String repository = context.getProperty(REPOSITORY_URL_PARAM);
         if (repository != null)
         	if (repository.length() > 0)
-        		this.addRepository(repositoryAdmin, repository);
+        {
+            List<String> repositories = new ArrayList<String>();
+            for (String url : repository.split(","))
+            {
+                if (url.trim().length() > 0)
+                    repositories.add(url.trim());
+            }
+            this.addRepositories(repositoryAdmin, repositories);
+        }
 
         //repository = "file:" + System.getProperty("user.home") + File.separator + ".m2" + File.separator  + "full-repository.xml";
         //this.addRepository(repositoryAdmin, repository);        
     }
+    /**
+     * Add these repositories to my available repositories.
+     * The local descriptor copies are checked (and downloaded) in parallel, but the repository admin
+     * adds (and parses) the repositories one at a time.
+     * @param repositoryAdmin
+     * @param repositories The repository urls
+     */
+    public void addRepositories(final RepositoryAdmin repositoryAdmin, Collection<String> repositories)
+    {
+        if (repositories.size() <= 1)
+        {
+            for (String repository : repositories)
+            {
+                this.addRepository(repositoryAdmin, repository);
+            }
+            return;
+        }
+        List<Future<?>> futures = new ArrayList<Future<?>>();
+        for (final String repository : repositories)
+        {
+            futures.add(this.getAsyncExecutor().submit(new Runnable() {
+                public void run()
+                {
+                    addRepository(repositoryAdmin, repository);
+                }
+            }));
+        }
+        for (Future<?> future : futures)
+        {
+            try {
+                future.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (ExecutionException e) {
+                e.getCause().printStackTrace();
+            }
+        }
+    }
     /**
      * Add this repository to my available repositories.
+     * If I have a local copy of the repository descriptor that is still current, the copy is read
+     * (the repository admin still sees the original url).
      * @param repositoryAdmin
      * @param repository
      */
     public void addRepository(RepositoryAdmin repositoryAdmin, String repository)
     {
+        if (repository == null)
+            return;
+        String key = ObrClassFinderService.getRepositoryKey(repository);
+        if (repositoryURLs.putIfAbsent(key, repository) != null)
+            return;     // Duplicate
         try {
-            if (repository != null)
+            RepositoryDescriptorCache.Descriptor descriptor = null;
+            if (descriptorCache != null)
+                descriptor = descriptorCache.getDescriptor(repository);
+            Repository repo = null;
+            if (descriptor != null)
+                repo = repositoryAdmin.addRepository(descriptor.getURL());
+            else
+                repo = repositoryAdmin.addRepository(repository);
+            if (repo == null)
             {
-                boolean duplicate = false;
-                for (Repository repo : repositoryAdmin.listRepositories())
-                {
-                    if (repository.equalsIgnoreCase(repo.getURI()))
-                        duplicate = true;
-                }
-                if (!duplicate)
-                {
-                    Repository repo = repositoryAdmin.addRepository(repository);
-                    if (repo == null)
-                        repositoryAdmin.removeRepository(repository);   // Ignore repos not found
-                }
+                repositoryAdmin.removeRepository(repository);   // Ignore repos not found
+                repositoryURLs.remove(key);
+            }
+            else
+            {   // New resources are available
+                packageIndex.update(repositoryAdmin.listRepositories());
+                this.invalidateMissCache();
+                this.clearResourceCache();
             }
         } catch (Exception e) {
+            repositoryURLs.remove(key);
             // Ignore exception e.printStackTrace();
         }
     }
+    /**
+     * Add the repositories that are already in the repository admin to my repository keys.
+     * @param repositoryAdmin
+     */
+    public void addRepositoryKeys(RepositoryAdmin repositoryAdmin)
+    {
+        for (Repository repo : repositoryAdmin.listRepositories())
+        {
+            repositoryURLs.putIfAbsent(ObrClassFinderService.getRepositoryKey(repo.getURI()), repo.getURI());
+        }
+    }
+    /**
+     * Get the key to compare repository urls with (the scheme and host are not case sensitive).
+     * @param repository The repository url
+     * @return The normalized url
+     */
+    public static String getRepositoryKey(String repository)
+    {
+        if (repository == null)
+            return null;
+        try {
+            URI uri = new URI(repository.trim());
+            if ((uri.getScheme() == null) || (uri.isOpaque()))
+                return uri.toString();
+            String host = (uri.getHost() == null) ? null : uri.getHost().toLowerCase(Locale.ENGLISH);
+            return new URI(uri.getScheme().toLowerCase(Locale.ENGLISH), uri.getUserInfo(), host, uri.getPort(), uri.getPath(), uri.getQuery(), uri.getFragment()).normalize().toString();
+        } catch (URISyntaxException e) {
+            return repository;
+        }
+    }
     /**
      * Called when this service is active.
      * Override this to register your service if you need a service.
@@ -146,6 +277,8 @@ public class ObrClassFinderService extends BaseClassFinderService
         ClassServiceUtility.log(context, LogService.LOG_INFO, "Stopping ObrClassFinderImpl");
 
         super.stop(context);
+        packageIndex.clear();
+        repositoryURLs.clear();
         repositoryAdmin = null;
         waitingForRepositoryAdmin = false;
         waitingForClassService = false;
@@ -189,48 +322,29 @@ public class ObrClassFinderService extends BaseClassFinderService
     }
     /**
      * Find this resource in the repository, then deploy and optionally start it.
+     * Note: If other threads are deploying this package, I wait for their result.
      * @param className
      * @param options 
      * @return
      */
-    public Object deployThisResource(String packageName, String versionRange, boolean start)
+    public Object deployThisResource(final String packageName, final String versionRange, boolean start)
     {
-    	int options = 0;
-    	//?if (start)
-    	//?	options = Resolver.START;
     	if (repositoryAdmin == null)
     		return null;
-        DataModelHelper helper = repositoryAdmin.getHelper();
         if (this.getResourceFromCache(packageName) != null)
         	return this.getResourceFromCache(packageName);
-        String filter = "(package=" + packageName + ")";
-        filter = ClassFinderActivator.addVersionFilter(filter, versionRange);
-        Requirement requirement = helper.requirement("package", filter);
-        Requirement[] requirements = { requirement };// repositoryAdmin
-        Resource[] resources = repositoryAdmin.discoverResources(requirements);
-        Resource bestResource = null; 
-        if (resources != null)
-        {
-            Version bestVersion = null; 
-            for (Resource resource : resources)
+        Resource bestResource = inFlightDeploys.execute(new CacheKey(PACKAGE, packageName, versionRange), new Callable<Resource>() {
+            public Resource call() throws Exception
             {
-                Version resourceVersion = resource.getVersion();
-                if (!isValidVersion(resourceVersion, versionRange))
-                    continue;
-                if ((bestVersion == null) || (resourceVersion.compareTo(bestVersion) >= 0))
-                {
-                    bestVersion = resourceVersion;  // Use the highest version number
-                    bestResource = resource;
-                }
+                return deployPackage(packageName, versionRange);
             }
-        }
-        if (bestResource != null)
+        });
+        if (start)
+            if (bestResource != null)
         {
-            this.deployResource(bestResource, options);
             Bundle bundle = this.findBundle(bestResource, bundleContext, packageName, versionRange);
-            if (start)
-                if (bundle != null)
-                    if ((bundle.getState() != Bundle.ACTIVE) && (bundle.getState() != Bundle.STARTING))
+            if (bundle != null)
+                if ((bundle.getState() != Bundle.ACTIVE) && (bundle.getState() != Bundle.STARTING))
             {
                 try {
                     bundle.start();
@@ -238,23 +352,143 @@ public class ObrClassFinderService extends BaseClassFinderService
                     e.printStackTrace();
                 }
             }
+        }
+    	return bestResource;
+    }
+    /**
+     * Find the best resource for this package in the repository and deploy it.
+     * Only one thread at a time runs this for a package (see deployThisResource).
+     * @param packageName
+     * @param versionRange
+     * @return The resource or null if not found.
+     */
+    protected Resource deployPackage(String packageName, String versionRange)
+    {
+    	int options = 0;
+    	//?if (start)
+    	//?	options = Resolver.START;
+        if (this.getResourceFromCache(packageName) != null)
+        	return (Resource)this.getResourceFromCache(packageName);  // Just deployed by another thread
+        if (packageIndex.update(repositoryAdmin.listRepositories()))  // Repositories can be added without me
+            this.clearResourceCache();
+        Resource bestResource = packageIndex.findResource(packageName, versionRange);  // Highest version
+        if (bestResource != null)
+        {
+            this.deployResource(bestResource, options);
         	this.addResourceToCache(packageName, bestResource);
         }
     	return bestResource;
     }
+    public static final String PACKAGE = "package";
+    /**
+     * Get the cache counters.
+     * @return The cache name to counters map.
+     */
+    public Map<String, CacheStats> getCacheStats()
+    {
+        Map<String, CacheStats> stats = super.getCacheStats();
+        stats.put("repositoryPackage", packageIndex.getStats());
+        return stats;
+    }
     /**
      * Deploy this list of resources.
      * @param resources
      * @param options
      */
     public void deployResources(Resource[] resources, int options)
+    {
+        this.deployResourceBatch(resources, options);
+    }
+    /**
+     * Deploy this list of resources.
+     * All the resources are added to one resolver, resolved once, and installed together.
+     * If the options include Resolver.START, the bundles are started after they are all installed,
+     * each one after the bundles it depends on (independent bundles are started in parallel,
+     * bundles in a dependency cycle are started in install order).
+     * @param resources
+     * @param options
+     * @return The deployment results and timings (null if there are no resources).
+     */
+    public BatchDeployment deployResourceBatch(Resource[] resources, int options)
+    {
+        if ((resources == null) || (resources.length == 0))
+            return null;
+        BatchDeployment deployment = new BatchDeployment(resources.length);
+        long time = System.nanoTime();
+        Resolver resolver = repositoryAdmin.resolver();
+        for (Resource resource : resources)
+        {
+            resolver.add(resource);
+        }
+        int resolveAttempt = 5;
+        while (resolveAttempt-- > 0)
+        {
+            try {
+                deployment.resolved = resolver.resolve(options);
+                break;
+            } catch (IllegalStateException e) {
+                // If resolve unsuccessful, try again
+                if (resolveAttempt == 0)
+                    e.printStackTrace();
+            }
+        }
+        deployment.resolveTime = System.nanoTime() - time;
+        if (!deployment.resolved)
+        {
+            Reason[] reqs = resolver.getUnsatisfiedRequirements();
+            if (reqs != null)
+                for (int i = 0; i < reqs.length; i++) {
+                ClassServiceUtility.log(bundleContext, LogService.LOG_ERROR, "Unable to resolve: " + reqs[i]);
+            }
+            ClassServiceUtility.log(bundleContext, LogService.LOG_INFO, deployment.toString());
+            return deployment;
+        }
+
+        time = System.nanoTime();
+        try {
+            resolver.deploy(options & ~Resolver.START);     // I start them in dependency order
+            deployment.deployed = true;
+        } catch (IllegalStateException e) {
+            e.printStackTrace();
+        }
+        deployment.deployTime = System.nanoTime() - time;
+        List<Resource> deployed = new ArrayList<Resource>();
+        this.addResources(deployed, resolver.getAddedResources());
+        this.addResources(deployed, resolver.getRequiredResources());
+        if ((options & Resolver.NO_OPTIONAL_RESOURCES) == 0)
+            this.addResources(deployed, resolver.getOptionalResources());
+        for (Resource resource : deployed)
+        {
+            Bundle bundle = this.findBundle(resource, bundleContext, null, null);
+            if (bundle != null)
+                deployment.bundles.add(bundle);
+        }
+        this.invalidateMissCache();     // New bundles
+
+        if ((deployment.deployed) && ((options & Resolver.START) != 0))
+        {
+            time = System.nanoTime();
+            try {
+                new BundleStartupOrchestrator(bundleContext, this).start(deployment.bundles);
+                deployment.started = true;
+            } catch (BundleException e) {
+                ClassServiceUtility.log(bundleContext, LogService.LOG_ERROR, "Unable to start the deployed bundles: " + e.getMessage());
+            }
+            deployment.startTime = System.nanoTime() - time;
+        }
+        ClassServiceUtility.log(bundleContext, LogService.LOG_INFO, deployment.toString());
+        return deployment;
+    }
+    /**
+     * Add these resources to the list (skipping duplicates).
+     */
+    private void addResources(List<Resource> list, Resource[] resources)
     {
         if (resources != null)
+            for (Resource resource : resources)
         {
-        	for (Resource resource : resources)
-        	{
-        		this.deployResource(resource, options);
-        	}
+            if (!list.contains(resource))
+                list.add(resource);
         }
     }
 
@@ -300,5 +534,75 @@ public class ObrClassFinderService extends BaseClassFinderService
     	Resource resource = (Resource)objResource;
     	return ((bundle.getSymbolicName().equals(resource.getSymbolicName())) && (isValidVersion(bundle.getVersion(), resource.getVersion().toString())));
     }
-}
+    /**
+     * Get the bundle symbolic name of this resource.
+     * @param objResource
+     * @return
+     */
+    public String getResourceSymbolicName(Object objResource)
+    {
+    	return ((Resource)objResource).getSymbolicName();
+    }
 
+    /**
+     * The results (and phase timings) of a batch deployment.
+     */
+    public static class BatchDeployment
+    {
+        protected final int resourceCount;
+        protected final List<Bundle> bundles = new ArrayList<Bundle>();
+        protected boolean resolved = false;
+        protected boolean deployed = false;
+        protected boolean started = false;
+        protected long resolveTime = 0;
+        protected long deployTime = 0;
+        protected long startTime = 0;
+
+        public BatchDeployment(int resourceCount)
+        {
+            this.resourceCount = resourceCount;
+        }
+        /**
+         * The bundles for the resources that were installed (including the requirements).
+         */
+        public List<Bundle> getBundles()
+        {
+            return bundles;
+        }
+        public boolean isResolved()
+        {
+            return resolved;
+        }
+        public boolean isDeployed()
+        {
+            return deployed;
+        }
+        public boolean isStarted()
+        {
+            return started;
+        }
+        /**
+         * Phase times in ms.
+         */
+        public long getResolveMillis()
+        {
+            return resolveTime / 1000000;
+        }
+        public long getDeployMillis()
+        {
+            return deployTime / 1000000;
+        }
+        public long getStartMillis()
+        {
+            return startTime / 1000000;
+        }
+        @Override
+        public String toString()
+        {
+            return "Deployed " + resourceCount + " resources (" + bundles.size() + " bundles)"
+                + ": resolve " + this.getResolveMillis() + "ms" + (resolved ? "" : " (failed)")
+                + ", deploy " + this.getDeployMillis() + "ms" + (deployed ? "" : " (failed)")
+                + ", start " + this.getStartMillis() + "ms";
+        }
+    }
+}
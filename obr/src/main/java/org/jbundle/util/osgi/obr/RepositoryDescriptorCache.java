@@ -0,0 +1,324 @@
+/*
+ * Copyright © 2012 jbundle.org. All rights reserved.
+ */
+package org.jbundle.util.osgi.obr;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLConnection;
+import java.net.URLStreamHandler;
+import java.nio.charset.Charset;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * RepositoryDescriptorCache - Local copies of the obr repository descriptors (repository.xml),
+ * so an unchanged repository is not downloaded again.
+ * Each copy is revalidated before it is used: http repositories with a conditional request
+ * (If-Modified-Since and If-None-Match), other urls (ie., file:) by last modified time and length,
+ * and a downloaded descriptor with the same digest as the copy is also unchanged.
+ * The copy is added to the repository admin with the original url (see Descriptor.getURL), so the
+ * repository keeps its uri and the relative resource and referral urls resolve against the original.
+ * Only plain xml descriptors are cached (compressed descriptors are added from the original url).
+ *
+ * @author don
+ *
+ */
+public class RepositoryDescriptorCache
+{
+    /**
+     * Descriptor properties (in the properties file next to the copy).
+     */
+    public static final String SOURCE = "source";
+    public static final String LAST_MODIFIED = "lastModified";
+    public static final String LENGTH = "length";
+    public static final String ETAG = "etag";
+    public static final String DIGEST = "digest";
+
+    public static final String DIGEST_ALGORITHM = "SHA-256";
+
+    protected static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /**
+     * The directory with the descriptor copies.
+     */
+    protected File directory = null;
+    /**
+     * The lock for each descriptor (by file name).
+     */
+    protected final Map<String, Object> locks = new ConcurrentHashMap<String, Object>();
+
+    /**
+     * Constructor.
+     * @param directory The directory for the descriptor copies
+     */
+    public RepositoryDescriptorCache(File directory)
+    {
+        super();
+        this.directory = directory;
+    }
+    /**
+     * Get the local copy of this repository descriptor (downloading it if it changed).
+     * If the repository can't be reached, the last copy is used.
+     * @param repository The repository url
+     * @return The descriptor or null if it can't be cached (add the original url).
+     * @throws IOException If the repository can't be read and there is no copy
+     */
+    public Descriptor getDescriptor(String repository)
+        throws IOException
+    {
+        URL url = new URL(repository);
+        String name = RepositoryDescriptorCache.getFileName(repository);
+        File file = new File(directory, name + ".xml");
+        File propertiesFile = new File(directory, name + ".properties");
+        synchronized (this.getLock(name))
+        {
+            Properties properties = RepositoryDescriptorCache.readProperties(propertiesFile);
+            boolean haveCopy = (file.isFile()) && (repository.equals(properties.getProperty(SOURCE)));
+            if (!haveCopy)
+                properties.clear();
+            byte[] data = null;
+            URLConnection connection = null;
+            try {
+                connection = url.openConnection();
+                if ((haveCopy) && (connection instanceof HttpURLConnection))
+                {
+                    if (properties.getProperty(LAST_MODIFIED) != null)
+                        connection.setIfModifiedSince(Long.parseLong(properties.getProperty(LAST_MODIFIED)));
+                    if (properties.getProperty(ETAG) != null)
+                        connection.setRequestProperty("If-None-Match", properties.getProperty(ETAG));
+                    if (((HttpURLConnection)connection).getResponseCode() == HttpURLConnection.HTTP_NOT_MODIFIED)
+                        return new Descriptor(repository, file, properties.getProperty(DIGEST), false);
+                }
+                else if ((haveCopy) && (connection.getLastModified() != 0)
+                    && (Long.toString(connection.getLastModified()).equals(properties.getProperty(LAST_MODIFIED)))
+                    && (Long.toString(connection.getContentLengthLong()).equals(properties.getProperty(LENGTH))))
+                {   // ie., file: (don't even read it)
+                    return new Descriptor(repository, file, properties.getProperty(DIGEST), false);
+                }
+                data = RepositoryDescriptorCache.readFully(connection.getInputStream());
+            } catch (IOException e) {
+                if (haveCopy)
+                    return new Descriptor(repository, file, properties.getProperty(DIGEST), false); // Offline
+                throw e;
+            } catch (NumberFormatException e) {
+                propertiesFile.delete();    // Bad properties, download it again
+                return this.getDescriptor(repository);
+            }
+            if (!RepositoryDescriptorCache.isXml(data))
+                return null;
+            String digest = RepositoryDescriptorCache.getDigest(data);
+            boolean changed = (!haveCopy) || (!digest.equals(properties.getProperty(DIGEST)));
+            if (changed)
+                RepositoryDescriptorCache.writeFile(file, data);
+            properties.setProperty(SOURCE, repository);
+            properties.setProperty(LAST_MODIFIED, Long.toString(connection.getLastModified()));
+            properties.setProperty(LENGTH, Long.toString(data.length));
+            properties.setProperty(DIGEST, digest);
+            if (connection.getHeaderField("ETag") != null)
+                properties.setProperty(ETAG, connection.getHeaderField("ETag"));
+            else
+                properties.remove(ETAG);
+            RepositoryDescriptorCache.writeProperties(propertiesFile, properties);
+            return new Descriptor(repository, file, digest, changed);
+        }
+    }
+    /**
+     * Get the lock for this descriptor (so two threads don't write the same copy).
+     */
+    protected Object getLock(String name)
+    {
+        Object lock = locks.get(name);
+        if (lock == null)
+        {
+            Object newLock = new Object();
+            lock = locks.putIfAbsent(name, newLock);
+            if (lock == null)
+                lock = newLock;
+        }
+        return lock;
+    }
+    /**
+     * Get the file name for this repository's copy (a hash of the url).
+     */
+    public static String getFileName(String repository)
+    {
+        return RepositoryDescriptorCache.getDigest(repository.getBytes(UTF8)).substring(0, 24);
+    }
+    /**
+     * Get the (hex) digest of this data.
+     */
+    public static String getDigest(byte[] data)
+    {
+        try {
+            byte[] digest = MessageDigest.getInstance(DIGEST_ALGORITHM).digest(data);
+            StringBuilder sb = new StringBuilder(digest.length * 2);
+            for (byte b : digest)
+            {
+                sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);    // Every jvm has SHA-256
+        }
+    }
+    /**
+     * Is this an xml document (not a compressed descriptor)?
+     */
+    public static boolean isXml(byte[] data)
+    {
+        for (int i = 0; i < data.length; i++)
+        {
+            if (data[i] == '<')
+                return true;
+            if ((!Character.isWhitespace(data[i])) && ((data[i] & 0x80) == 0))
+                return false;   // Allow a byte order mark
+        }
+        return false;
+    }
+    private static byte[] readFully(InputStream stream)
+        throws IOException
+    {
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream(64 * 1024);
+            byte[] buffer = new byte[8192];
+            int count = 0;
+            while ((count = stream.read(buffer)) != -1)
+            {
+                out.write(buffer, 0, count);
+            }
+            return out.toByteArray();
+        } finally {
+            stream.close();
+        }
+    }
+    private static Properties readProperties(File file)
+    {
+        Properties properties = new Properties();
+        if (file.isFile())
+        {
+            try {
+                InputStream stream = new FileInputStream(file);
+                try {
+                    properties.load(stream);
+                } finally {
+                    stream.close();
+                }
+            } catch (IOException e) {
+                properties.clear();     // Download it again
+            }
+        }
+        return properties;
+    }
+    private static void writeProperties(File file, Properties properties)
+        throws IOException
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        properties.store(out, "Repository descriptor");
+        RepositoryDescriptorCache.writeFile(file, out.toByteArray());
+    }
+    /**
+     * Write this file (to a temporary file, then move it, so a crash never leaves a partial file).
+     */
+    private static void writeFile(File file, byte[] data)
+        throws IOException
+    {
+        file.getParentFile().mkdirs();
+        File tempFile = new File(file.getPath() + ".tmp");
+        OutputStream out = new FileOutputStream(tempFile);
+        try {
+            out.write(data);
+        } finally {
+            out.close();
+        }
+        try {
+            Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * A local copy of a repository descriptor.
+     */
+    public static class Descriptor
+    {
+        protected final String repository;
+        protected final File file;
+        protected final String digest;
+        protected final boolean changed;
+
+        public Descriptor(String repository, File file, String digest, boolean changed)
+        {
+            this.repository = repository;
+            this.file = file;
+            this.digest = digest;
+            this.changed = changed;
+        }
+        /**
+         * The original repository url.
+         */
+        public String getRepository()
+        {
+            return repository;
+        }
+        /**
+         * The url to add to the repository admin.
+         * This is the original url, but the descriptor is read from the local copy.
+         * @throws MalformedURLException
+         */
+        public URL getURL()
+            throws MalformedURLException
+        {
+            return new URL(null, repository, new LocalCopyHandler(repository, file));
+        }
+        public String getDigest()
+        {
+            return digest;
+        }
+        /**
+         * Was the descriptor downloaded (it is new or it changed since the last copy)?
+         */
+        public boolean isChanged()
+        {
+            return changed;
+        }
+    }
+    /**
+     * Opens the local copy for the repository url.
+     * Any other url made from it (ie., a relative referral or resource url) is opened as usual.
+     */
+    public static class LocalCopyHandler extends URLStreamHandler
+    {
+        protected final String repository;
+        protected final File file;
+
+        public LocalCopyHandler(String repository, File file)
+        {
+            this.repository = repository;
+            this.file = file;
+        }
+        @Override
+        protected URLConnection openConnection(URL url)
+            throws IOException
+        {
+            if (repository.equals(url.toExternalForm()))
+                return file.toURI().toURL().openConnection();
+            return new URL(url.toExternalForm()).openConnection();  // The standard handler
+        }
+    }
+}
@@ -0,0 +1,233 @@
+/*
+ * Copyright © 2012 jbundle.org. All rights reserved.
+ */
+package org.jbundle.util.osgi.obr;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.felix.bundlerepository.Capability;
+import org.apache.felix.bundlerepository.Repository;
+import org.apache.felix.bundlerepository.Resource;
+import org.jbundle.util.osgi.finder.CacheStats;
+import org.jbundle.util.osgi.finder.VersionRange;
+import org.osgi.framework.Version;
+
+/**
+ * RepositoryPackageIndex - Index of package name to the repository resources that export it.
+ * Each repository is indexed once (when it is added or changes), so finding the resource for a package
+ * is a map lookup instead of matching a requirement against every capability in every repository.
+ * The resources for each package are sorted by version (highest first).
+ *
+ * @author don
+ *
+ */
+public class RepositoryPackageIndex
+{
+    /**
+     * Repository URI to its packages.
+     */
+    protected Map<String, RepositoryPackages> repositories = new HashMap<String, RepositoryPackages>();
+    /**
+     * Package name to the resources that export it (all repositories, highest version first).
+     * Note: This map is replaced (never changed) when a repository changes.
+     */
+    protected volatile Map<String, PackageResource[]> packageMap = new HashMap<String, PackageResource[]>();
+
+    protected final CacheStats stats = new CacheStats();
+
+    /**
+     * Constructor.
+     */
+    public RepositoryPackageIndex()
+    {
+        super();
+    }
+    /**
+     * Index the repositories that are new or changed and drop the ones that were removed.
+     * @param repositories The current repositories
+     * @return true if the index changed.
+     */
+    public synchronized boolean update(Repository[] currentRepositories)
+    {
+        if (currentRepositories == null)
+            currentRepositories = new Repository[0];
+        boolean changed = false;
+        Set<String> uris = new HashSet<String>();
+        for (Repository repository : currentRepositories)
+        {
+            String uri = repository.getURI();
+            uris.add(uri);
+            RepositoryPackages packages = repositories.get(uri);
+            if ((packages == null) || (packages.repository != repository) || (packages.lastModified != repository.getLastModified()))
+            {
+                repositories.put(uri, RepositoryPackageIndex.indexRepository(repository));
+                changed = true;
+            }
+        }
+        if (repositories.keySet().retainAll(uris))
+            changed = true;
+        if (changed)
+            packageMap = this.mergeRepositories();
+        return changed;
+    }
+    /**
+     * Find the resource with the highest version that exports this package.
+     * @param packageName The package name
+     * @param versionRange The version range (the package and resource versions must both match)
+     * @return The resource or null if not found.
+     */
+    public Resource findResource(String packageName, String versionRange)
+    {
+        PackageResource[] resources = packageMap.get(packageName);
+        if (resources != null)
+        {
+            VersionRange range = VersionRange.parse(versionRange);
+            for (PackageResource resource : resources)
+            {
+                if ((range.includes(resource.resourceVersion)) && (range.includes(resource.packageVersion)))
+                {
+                    stats.recordHit();
+                    return resource.resource;
+                }
+            }
+        }
+        stats.recordMiss();
+        return null;
+    }
+    /**
+     * Remove all the repositories.
+     */
+    public synchronized void clear()
+    {
+        repositories.clear();
+        packageMap = new HashMap<String, PackageResource[]>();
+    }
+    /**
+     * Get the counters.
+     */
+    public CacheStats getStats()
+    {
+        return stats;
+    }
+    /**
+     * Index the package capabilities of this repository's resources.
+     */
+    public static RepositoryPackages indexRepository(Repository repository)
+    {
+        Map<String, List<PackageResource>> packages = new HashMap<String, List<PackageResource>>();
+        Resource[] resources = repository.getResources();
+        if (resources != null)
+            for (Resource resource : resources)
+        {
+            Capability[] capabilities = resource.getCapabilities();
+            if (capabilities == null)
+                continue;
+            for (Capability capability : capabilities)
+            {
+                if (!Capability.PACKAGE.equals(capability.getName()))
+                    continue;
+                Map<?, ?> properties = capability.getPropertiesAsMap();
+                Object packageName = properties.get(Capability.PACKAGE);
+                if (packageName == null)
+                    continue;
+                List<PackageResource> list = packages.get(packageName.toString());
+                if (list == null)
+                    packages.put(packageName.toString(), list = new ArrayList<PackageResource>());
+                list.add(new PackageResource(resource, RepositoryPackageIndex.getVersion(properties.get(Resource.VERSION))));
+            }
+        }
+        return new RepositoryPackages(repository, packages);
+    }
+    /**
+     * Get the version from this capability property.
+     */
+    private static Version getVersion(Object version)
+    {
+        if (version instanceof Version)
+            return (Version)version;
+        try {
+            if (version != null)
+                return Version.parseVersion(version.toString());
+        } catch (IllegalArgumentException e) {
+            // Weird version
+        }
+        return Version.emptyVersion;
+    }
+    /**
+     * Merge the repository indexes into one package map (highest version first).
+     */
+    private Map<String, PackageResource[]> mergeRepositories()
+    {
+        Map<String, List<PackageResource>> merged = new HashMap<String, List<PackageResource>>();
+        for (RepositoryPackages repositoryPackages : repositories.values())
+        {
+            for (Map.Entry<String, List<PackageResource>> entry : repositoryPackages.packages.entrySet())
+            {
+                List<PackageResource> list = merged.get(entry.getKey());
+                if (list == null)
+                    merged.put(entry.getKey(), list = new ArrayList<PackageResource>());
+                list.addAll(entry.getValue());
+            }
+        }
+        Map<String, PackageResource[]> newPackageMap = new HashMap<String, PackageResource[]>(merged.size() * 4 / 3 + 1);
+        for (Map.Entry<String, List<PackageResource>> entry : merged.entrySet())
+        {
+            PackageResource[] resources = entry.getValue().toArray(new PackageResource[entry.getValue().size()]);
+            Arrays.sort(resources, HIGHEST_VERSION_FIRST);
+            newPackageMap.put(entry.getKey(), resources);
+        }
+        return newPackageMap;
+    }
+    /**
+     * Sort by resource version, then package version (highest first).
+     */
+    public static final Comparator<PackageResource> HIGHEST_VERSION_FIRST = new Comparator<PackageResource>() {
+        public int compare(PackageResource resource1, PackageResource resource2)
+        {
+            int compare = resource2.resourceVersion.compareTo(resource1.resourceVersion);
+            if (compare == 0)
+                compare = resource2.packageVersion.compareTo(resource1.packageVersion);
+            return compare;
+        }
+    };
+
+    /**
+     * A repository's packages (and the repository revision they came from).
+     */
+    protected static class RepositoryPackages
+    {
+        protected final Repository repository;
+        protected final long lastModified;
+        protected final Map<String, List<PackageResource>> packages;
+
+        public RepositoryPackages(Repository repository, Map<String, List<PackageResource>> packages)
+        {
+            this.repository = repository;
+            this.lastModified = repository.getLastModified();
+            this.packages = packages;
+        }
+    }
+    /**
+     * A resource that exports a package (and the versions to match).
+     */
+    protected static class PackageResource
+    {
+        protected final Resource resource;
+        protected final Version resourceVersion;
+        protected final Version packageVersion;
+
+        public PackageResource(Resource resource, Version packageVersion)
+        {
+            this.resource = resource;
+            this.resourceVersion = (resource.getVersion() != null) ? resource.getVersion() : Version.emptyVersion;
+            this.packageVersion = packageVersion;
+        }
+    }
+}